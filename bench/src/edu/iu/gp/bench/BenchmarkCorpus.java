@@ -0,0 +1,202 @@
+package edu.iu.gp.bench;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+
+/**
+ * The input data of the benchmarks: "qstat -f" dumps, stderr files and
+ * epilogue outputs.
+ *
+ * By default the corpus is generated with the same layout as the output of
+ * our Torque/Moab cluster, with a fixed random seed so every run uses the
+ * same data. To benchmark with files captured from real jobs, set the system
+ * property pbs.bench.corpus to a directory which contains any of
+ * <pre>
+ *     qstat-f.txt      the output of "qstat -f @host"
+ *     stderr.txt       the stderr file of a chatty module
+ *     epilogue.pbs     the .pbs/.epilogue.pbs file of a finished job
+ * </pre>
+ *
+ * @author lewu@iu.edu
+ */
+public class BenchmarkCorpus {
+
+    public static final String CORPUS_DIR_PROPERTY = "pbs.bench.corpus";
+
+    private static final String[] STATES = {"Q", "Q", "R", "R", "R", "R", "C", "H", "E"};
+
+    private static final String[] STDERR_LINES = {
+        "INFO  [main] org.genepattern.module.Preprocess - reading input file chunk",
+        "Loading required package: Biobase",
+        "Warning message: In log2(x) : NaNs produced",
+        "    at edu.mit.broad.genome.parsers.GctParser.parse(GctParser.java:94)",
+        "[Thu Dec 18 10:21:03 2014] processing sample 1234 of 20000 (6.17%)",
+        "DEBUG cluster size=42 iterations=1000 converged=false delta=0.000123",
+    };
+
+    /**
+     * @return the "qstat -f" output of the given number of jobs
+     */
+    public static String qstatDump(int jobs) throws IOException {
+        String real = readCorpusFile("qstat-f.txt");
+        if (real != null) {
+            return real;
+        }
+        Random random = new Random(jobs);
+        StringBuilder sb = new StringBuilder(jobs * 2048);
+        for (int i = 0; i < jobs; i++) {
+            sb.append(qstatJob(265066 + i, STATES[random.nextInt(STATES.length)], random)).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return the "qstat -f" output of one running job
+     */
+    public static String qstatSingleJob() throws IOException {
+        return qstatJob(265066, "R", new Random(1L));
+    }
+
+    private static String qstatJob(int seq, String state, Random random) {
+        String id = seq + ".m1.mason";
+        String workDir = "/N/dc2/projects/genepattern/jobResults/" + (100000 + seq % 100000);
+        StringBuilder sb = new StringBuilder(2048);
+        sb.append("Job Id: ").append(id).append('\n');
+        sb.append("    Job_Name = gp-job-").append(seq % 100000).append("-user").append(seq % 37).append('\n');
+        sb.append("    Job_Owner = gpserver@m1.mason.indiana.edu\n");
+        if (!"Q".equals(state) && !"H".equals(state)) {
+            sb.append("    resources_used.cput = ").append(duration(random.nextInt(200000))).append('\n');
+            sb.append("    resources_used.mem = ").append(random.nextInt(64000000)).append("kb\n");
+            sb.append("    resources_used.vmem = ").append(random.nextInt(128000000)).append("kb\n");
+            sb.append("    resources_used.walltime = ").append(duration(random.nextInt(90000))).append('\n');
+        }
+        sb.append("    job_state = ").append(state).append('\n');
+        sb.append("    queue = batch\n");
+        sb.append("    server = m1.mason.indiana.edu\n");
+        sb.append("    Checkpoint = u\n");
+        sb.append("    ctime = Tue Dec 16 15:33:42 2014\n");
+        sb.append("    Error_Path = m1.mason.indiana.edu:").append(workDir).append("/stderr.txt\n");
+        if (!"Q".equals(state) && !"H".equals(state)) {
+            sb.append("    exec_host = m").append(random.nextInt(16)).append("/0+m")
+                    .append(random.nextInt(16)).append("/1+m").append(random.nextInt(16)).append("/2\n");
+        }
+        sb.append("    Hold_Types = ").append("H".equals(state) ? "u" : "n").append('\n');
+        sb.append("    Join_Path = n\n");
+        sb.append("    Keep_Files = n\n");
+        sb.append("    Mail_Points = a\n");
+        sb.append("    mtime = Tue Dec 16 15:40:02 2014\n");
+        sb.append("    Output_Path = m1.mason.indiana.edu:").append(workDir).append("/stdout.txt\n");
+        sb.append("    Priority = 0\n");
+        sb.append("    qtime = Tue Dec 16 15:33:42 2014\n");
+        sb.append("    Rerunable = True\n");
+        sb.append("    Resource_List.cput = 720:00:00\n");
+        sb.append("    Resource_List.epilogue = ").append(workDir).append("/.pbs/.epilogue.sh\n");
+        sb.append("    Resource_List.mem = 16gb\n");
+        sb.append("    Resource_List.nodect = 1\n");
+        sb.append("    Resource_List.nodes = 1:ppn=4\n");
+        sb.append("    Resource_List.vmem = 16gb\n");
+        sb.append("    Resource_List.walltime = 24:00:00\n");
+        if (!"Q".equals(state) && !"H".equals(state)) {
+            sb.append("    session_id = ").append(10000 + random.nextInt(50000)).append('\n');
+        }
+        // Torque wraps the long values, the continuation lines start with a tab
+        sb.append("    Variable_List = PBS_O_QUEUE=batch,PBS_O_HOME=/home/gpserver,\n");
+        sb.append("\tPBS_O_LOGNAME=gpserver,\n");
+        sb.append("\tPBS_O_PATH=/usr/local/bin:/bin:/usr/bin:/usr/local/sbin:/usr/sbin:/sbin:/opt/moab/bin:/opt/torque/bin,\n");
+        sb.append("\tPBS_O_MAIL=/var/spool/mail/gpserver,PBS_O_SHELL=/bin/bash,\n");
+        sb.append("\tPBS_O_LANG=en_US.UTF-8,PBS_O_WORKDIR=").append(workDir).append(",\n");
+        sb.append("\tPBS_O_HOST=m1.mason.indiana.edu,PBS_O_SERVER=m1.mason.indiana.edu\n");
+        sb.append("    euser = gpserver\n");
+        sb.append("    egroup = gpserver\n");
+        sb.append("    queue_rank = ").append(seq).append('\n');
+        sb.append("    queue_type = E\n");
+        sb.append("    etime = Tue Dec 16 15:33:42 2014\n");
+        if (!"Q".equals(state) && !"H".equals(state)) {
+            sb.append("    start_time = Tue Dec 16 15:34:12 2014\n");
+            sb.append("    start_count = 1\n");
+        }
+        if ("C".equals(state)) {
+            sb.append("    exit_status = 0\n");
+            sb.append("    comp_time = Tue Dec 16 18:34:12 2014\n");
+        }
+        sb.append("    fault_tolerant = False\n");
+        sb.append("    job_radix = 0\n");
+        sb.append("    submit_host = m1.mason.indiana.edu\n");
+        return sb.toString();
+    }
+
+    /**
+     * @return the content of an epilogue output, the same format as the
+     * script created by CommandTemplate
+     */
+    public static String epilogue() throws IOException {
+        String real = readCorpusFile("epilogue.pbs");
+        if (real != null) {
+            return real;
+        }
+        return "Job ID:265066.m1.mason\n"
+                + "User_ID:gpserver\n"
+                + "Group_ID:gpserver\n"
+                + "Job_Name:gp-job-1002-test\n"
+                + "Session_ID:23817\n"
+                + "Resource_List:cput=720:00:00,epilogue=/N/dc2/projects/genepattern/jobResults/1002/.pbs/.epilogue.sh,"
+                + "mem=16gb,neednodes=1:ppn=4,nodes=1:ppn=4,vmem=16gb,walltime=24:00:00\n"
+                + "Resources_Used:cput=02:11:47,mem=10437228kb,vmem=12853140kb,walltime=00:45:03\n"
+                + "Queue_Name:batch\n"
+                + "Account_String:\n"
+                + "Job_Exit_Code:0\n";
+    }
+
+    /**
+     * Write a stderr file of about the given size
+     *
+     * @param withError if true, an error line is written at the end of the file
+     */
+    public static File stderrFile(int sizeInMb, boolean withError) throws IOException {
+        String real = System.getProperty(CORPUS_DIR_PROPERTY);
+        if (real != null && new File(real, "stderr.txt").exists()) {
+            return new File(real, "stderr.txt");
+        }
+        File file = File.createTempFile("bench-stderr-" + sizeInMb + "mb-", ".txt");
+        file.deleteOnExit();
+        Random random = new Random(sizeInMb);
+        long size = sizeInMb * 1024L * 1024L;
+        long written = 0L;
+        BufferedWriter out = new BufferedWriter(new FileWriter(file));
+        try {
+            while (written < size) {
+                String line = STDERR_LINES[random.nextInt(STDERR_LINES.length)];
+                out.write(line);
+                out.write('\n');
+                written += line.length() + 1;
+            }
+            if (withError) {
+                out.write("Exception in thread \"main\" java.lang.OutOfMemoryError: Java heap space\n");
+            }
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static String duration(int seconds) {
+        return String.format("%02d:%02d:%02d", seconds / 3600, (seconds / 60) % 60, seconds % 60);
+    }
+
+    private static String readCorpusFile(String name) throws IOException {
+        String dir = System.getProperty(CORPUS_DIR_PROPERTY);
+        if (dir == null) {
+            return null;
+        }
+        File file = new File(dir, name);
+        if (!file.exists()) {
+            return null;
+        }
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+    }
+}
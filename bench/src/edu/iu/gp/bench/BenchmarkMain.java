@@ -0,0 +1,37 @@
+package edu.iu.gp.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Run all the benchmarks, or the ones matching the regular expression given
+ * as the first argument, and report the throughput together with the
+ * allocation rate (the gc.alloc.rate and gc.alloc.rate.norm columns).
+ *
+ * <pre>
+ * java -cp bin:bench-bin:lib/*:jmh/* edu.iu.gp.bench.BenchmarkMain Qstat
+ * java -Dpbs.bench.corpus=/path/to/real/files -cp ... edu.iu.gp.bench.BenchmarkMain
+ * </pre>
+ *
+ * The benchmark classes must be compiled with the jmh-core and
+ * jmh-generator-annprocess jars on the classpath.
+ *
+ * @author lewu@iu.edu
+ */
+public class BenchmarkMain {
+
+    public static void main(String[] args) throws RunnerException {
+        String include = args.length > 0 ? args[0] : "edu.iu.gp.bench.*";
+        OptionsBuilder options = new OptionsBuilder();
+        options.include(include).addProfiler(GCProfiler.class);
+        String corpus = System.getProperty(BenchmarkCorpus.CORPUS_DIR_PROPERTY);
+        if (corpus != null) {
+            options.jvmArgsAppend("-D" + BenchmarkCorpus.CORPUS_DIR_PROPERTY + "=" + corpus);
+        }
+        Options opt = options.build();
+        new Runner(opt).run();
+    }
+}
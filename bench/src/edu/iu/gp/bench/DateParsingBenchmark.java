@@ -0,0 +1,62 @@
+package edu.iu.gp.bench;
+
+import edu.iu.gp.TorqueTime;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The start_time and qtime decoding done by getStatus for a running job.
+ *
+ * @author lewu@iu.edu
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DateParsingBenchmark {
+
+    private static final DateTimeFormatter FORMAT = DateTimeFormatter.ofPattern(TorqueTime.PATTERN, Locale.US);
+
+    public String startTime = "Tue Dec 16 15:34:12 2014";
+
+    /**
+     * A new SimpleDateFormat for every value, as getStatus does
+     */
+    @Benchmark
+    public Date simpleDateFormat() throws ParseException {
+        SimpleDateFormat dt = new SimpleDateFormat("EEE MMM d HH:mm:ss yyyy");
+        return dt.parse(startTime);
+    }
+
+    /**
+     * The shared java.time decoder, with its cache of the last values
+     */
+    @Benchmark
+    public Date torqueTime() {
+        return TorqueTime.parse(startTime);
+    }
+
+    /**
+     * The shared java.time formatter, a value we have not seen before
+     */
+    @Benchmark
+    public LocalDateTime torqueTimeUncached() {
+        return LocalDateTime.parse(startTime, FORMAT);
+    }
+}
@@ -0,0 +1,99 @@
+package edu.iu.gp.bench;
+
+import edu.iu.gp.EpilogueRecord;
+import edu.iu.gp.PBS;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Scanner;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Reading and parsing the .epilogue.pbs file of a completed job.
+ *
+ * @author lewu@iu.edu
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EpilogueBenchmark {
+
+    private String epilogue;
+    private File epilogueFile;
+
+    @Setup
+    public void setup() throws IOException {
+        epilogue = BenchmarkCorpus.epilogue();
+        epilogueFile = File.createTempFile("bench-epilogue-", ".pbs");
+        FileWriter out = new FileWriter(epilogueFile);
+        try {
+            out.write(epilogue);
+        } finally {
+            out.close();
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        epilogueFile.delete();
+    }
+
+    /**
+     * The parsing done by getStatus for a job in state C
+     */
+    @Benchmark
+    public void parse(Blackhole bh) {
+        parse(epilogue, bh);
+    }
+
+    /**
+     * Read the file the same way getStatus does and parse it
+     */
+    @Benchmark
+    public void readAndParse(Blackhole bh) throws IOException {
+        Scanner scanner = new Scanner(epilogueFile);
+        try {
+            parse(scanner.useDelimiter("\\z").next(), bh);
+        } finally {
+            scanner.close();
+        }
+    }
+
+    /**
+     * The single pass parse into an EpilogueRecord
+     */
+    @Benchmark
+    public EpilogueRecord record() {
+        return EpilogueRecord.parse(epilogue);
+    }
+
+    @Benchmark
+    public EpilogueRecord readRecord() throws IOException {
+        return EpilogueRecord.read(epilogueFile);
+    }
+
+    private static void parse(String epiData, Blackhole bh) {
+        bh.consume(PBS.getKeyValue("Job_Exit_Code", epiData.split("\n")));
+        bh.consume(PBS.getKeyValue("Queue_Name", epiData.split("\n")));
+        String resourcesUsed = PBS.getKeyValue("Resources_Used", epiData.split("\n"));
+        bh.consume(PBS.getPbsFinalResUsage("cput", resourcesUsed.split(",")));
+        bh.consume(PBS.getPbsFinalResUsage("walltime", resourcesUsed.split(",")));
+        bh.consume(PBS.getPbsFinalResUsage("mem", resourcesUsed.split(",")));
+        bh.consume(PBS.getPbsFinalResUsage("vmem", resourcesUsed.split(",")));
+    }
+}
@@ -0,0 +1,103 @@
+package edu.iu.gp.bench;
+
+import edu.iu.gp.PBS;
+import edu.iu.gp.QstatParser;
+import edu.iu.gp.QstatRecord;
+import edu.iu.gp.QstatSnapshot;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The parsing of the "qstat -f" output, for one job and for a whole cluster.
+ *
+ * @author lewu@iu.edu
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class QstatParsingBenchmark {
+
+    /**
+     * The number of jobs in the "qstat -f @host" dump
+     */
+    @Param({"1000", "5000"})
+    public int jobs;
+
+    private String singleJob;
+    private String dump;
+
+    @Setup
+    public void setup() throws IOException {
+        singleJob = BenchmarkCorpus.qstatSingleJob();
+        dump = BenchmarkCorpus.qstatDump(jobs);
+    }
+
+    /**
+     * What PBS.qstat does with the output of "qstat -f id"
+     */
+    @Benchmark
+    public String getKeyValueJobState() {
+        return PBS.getKeyValue("job_state", singleJob.split("\n"));
+    }
+
+    @Benchmark
+    public String parseResKeyValueVmem() {
+        return PBS.parseResKeyValue("vmem", singleJob.split("\n"));
+    }
+
+    /**
+     * The old getStatus of a running job: job_state plus cput, vmem,
+     * start_time and qtime, every one of them from its own qstat output
+     */
+    @Benchmark
+    public void legacyRunningJobStatus(Blackhole bh) {
+        bh.consume(PBS.getKeyValue("job_state", singleJob.split("\n")));
+        bh.consume(PBS.parseResKeyValue("cput", singleJob.split("\n")));
+        bh.consume(PBS.parseResKeyValue("vmem", singleJob.split("\n")));
+        bh.consume(PBS.parseResKeyValue("start_time", singleJob.split("\n")));
+        bh.consume(PBS.parseResKeyValue("qtime", singleJob.split("\n")));
+    }
+
+    @Benchmark
+    public QstatRecord qstatRecord() {
+        return QstatParser.parseSingle(singleJob);
+    }
+
+    /**
+     * The whole cluster snapshot, one "qstat -f @host" per polling cycle
+     */
+    @Benchmark
+    public Map<String, QstatRecord> snapshot() {
+        return QstatSnapshot.parse(dump);
+    }
+
+    /**
+     * The snapshot parsed from a stream, as we do with the qstat output
+     */
+    @Benchmark
+    public void snapshotStreaming(final Blackhole bh) throws IOException {
+        QstatParser.parse(new StringReader(dump), new QstatParser.Handler() {
+            @Override
+            public void onRecord(QstatRecord record) {
+                bh.consume(record);
+            }
+        });
+    }
+}
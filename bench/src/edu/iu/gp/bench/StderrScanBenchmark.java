@@ -0,0 +1,89 @@
+package edu.iu.gp.bench;
+
+import edu.iu.gp.StderrScanner;
+import java.io.File;
+import java.io.IOException;
+import java.util.Scanner;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.lang.StringUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The error keyword scan of the stderr file of a finished job.
+ *
+ * @author lewu@iu.edu
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StderrScanBenchmark {
+
+    @Param({"4", "64"})
+    public int sizeInMb;
+
+    /**
+     * With an error at the end of the file, we have to scan the whole file
+     * in both cases
+     */
+    @Param({"false", "true"})
+    public boolean withError;
+
+    private File stderr;
+    private final StderrScanner tailScanner = new StderrScanner(StderrScanner.DEFAULT_KEYWORDS, new String[0], 1024L * 1024L);
+
+    @Setup
+    public void setup() throws IOException {
+        stderr = BenchmarkCorpus.stderrFile(sizeInMb, withError);
+    }
+
+    /**
+     * The whole file, PBS.hasErrorsInStdout keeps the result per file so we
+     * call the scanner directly
+     */
+    @Benchmark
+    public boolean fullScan() throws IOException {
+        return StderrScanner.getDefault().hasErrors(stderr);
+    }
+
+    /**
+     * Only the last MB of the file
+     */
+    @Benchmark
+    public boolean tail() throws IOException {
+        return tailScanner.hasErrors(stderr);
+    }
+
+    /**
+     * The Scanner and containsIgnoreCase loop we used before StderrScanner
+     */
+    @Benchmark
+    public boolean lineByLine() throws IOException {
+        Scanner scanner = new Scanner(stderr);
+        try {
+            while (scanner.hasNextLine()) {
+                String line = scanner.nextLine();
+                for (String keyword : StderrScanner.DEFAULT_KEYWORDS) {
+                    if (StringUtils.containsIgnoreCase(line, keyword)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        } finally {
+            scanner.close();
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package edu.iu.gp;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import org.genepattern.drm.DrmJobRecord;
+
+/**
+ * The scheduler backend which runs the Torque/Moab command line tools
+ * (qsub, qstat, qdel and showstart) through the PBS helpers.
+ *
+ * @author lewu@iu.edu
+ */
+public class CliSchedulerBackend implements SchedulerBackend {
+
+    @Override
+    public String submit(PbsJob pbsJob) throws IOException, InterruptedException, PbsException {
+        return PBS.qsub(pbsJob.getQsubCommand(), pbsJob.getStdinScript(), pbsJob.getHostName());
+    }
+
+    @Override
+    public List<String> submitArray(JobArray jobArray) throws IOException, InterruptedException, PbsException {
+        jobArray.createScripts();
+        String arrayId = PBS.qsub(jobArray.getQsubCommand(), null, jobArray.getJobs().get(0).getHostName());
+        return jobArray.elementIds(arrayId);
+    }
+
+    @Override
+    public QstatRecord status(DrmJobRecord drmJobRecord) throws IOException, InterruptedException, PbsException {
+        return PBS.qstatRecord(drmJobRecord);
+    }
+
+    @Override
+    public Map<String, QstatRecord> bulkStatus(String clusterName) throws IOException, InterruptedException, PbsException {
+        Map<String, QstatRecord> records = QstatSnapshot.forCluster(clusterName).getValidJobRecords();
+        if (records == null) {
+            throw new PbsException("Can not get the qstat snapshot of " + clusterName);
+        }
+        return records;
+    }
+
+    @Override
+    public boolean cancel(String pbsJobId) throws IOException, InterruptedException, PbsException {
+        return PBS.qdel(pbsJobId);
+    }
+
+    @Override
+    public Map<String, String> cancelAll(Collection<String> pbsJobIds) throws IOException, InterruptedException {
+        return PBS.qdelAll(pbsJobIds);
+    }
+
+    @Override
+    public String startEstimate(DrmJobRecord drmJobRecord) throws IOException, InterruptedException, PbsException {
+        return PBS.showstart(drmJobRecord);
+    }
+}
@@ -0,0 +1,376 @@
+package edu.iu.gp;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import org.apache.log4j.Logger;
+
+/**
+ * Limits the scheduler commands we run against one pbs_server.
+ *
+ * Every qsub, qstat, qdel and showstart of a cluster (pbs.host) goes through
+ * the throttle of that cluster, which combines
+ * <ul>
+ * <li>a token bucket whose rate adapts to the server: it grows a little after
+ * every fast answer, and is halved when a command is slower than the target
+ * latency or fails because the server is overloaded (at most once a second,
+ * so one burst of timeouts halves it once);</li>
+ * <li>a circuit breaker: after failureThreshold overload errors in a row we
+ * stop sending commands for a while, then let one command through to probe
+ * the server. The break doubles every time the probe fails, up to
+ * MAX_OPEN_MILLIS.</li>
+ * </ul>
+ *
+ * While the breaker is open the status checks fail at once with a
+ * ServerOverloadedException, the job runner then reports the last status it
+ * knows. qsub and qdel wait for the server instead, up to the command
+ * timeout.
+ *
+ * The throttles are configured with the system properties
+ * <pre>
+ *     pbs.throttle.maxPerSecond          the highest rate, default 20, 0 for no rate limit
+ *     pbs.throttle.minPerSecond          the lowest rate, default 0.5
+ *     pbs.throttle.targetLatencyMillis   slower commands lower the rate, default 5000
+ *     pbs.throttle.failureThreshold      overload errors in a row which open the breaker, default 5
+ *     pbs.throttle.openMillis            the first break, default 10000
+ * </pre>
+ *
+ * @author lewu@iu.edu
+ */
+public class ClusterThrottle {
+
+    private static final Logger log = Logger.getLogger(ClusterThrottle.class);
+
+    public static final double DEFAULT_MAX_PER_SECOND = 20.0;
+    public static final double DEFAULT_MIN_PER_SECOND = 0.5;
+    public static final long DEFAULT_TARGET_LATENCY_MILLIS = 5000L;
+    public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+    public static final long DEFAULT_OPEN_MILLIS = 10000L;
+    public static final long MAX_OPEN_MILLIS = 300000L;
+
+    /**
+     * What the Torque commands print when pbs_server does not answer in time
+     */
+    private static final String[] OVERLOAD_MESSAGES = {
+        "timed out",
+        "timeout",
+        "cannot connect",
+        "could not connect",
+        "connection refused",
+        "end of file",
+        "premature end of message",
+        "pbs_iff",
+        "communication failure",
+        "server busy"
+    };
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private static final Map<String, ClusterThrottle> throttles = new ConcurrentHashMap<String, ClusterThrottle>();
+
+    private final String clusterName;
+    private final double maxRate;
+    private final double minRate;
+    private final long targetLatencyMillis;
+    private final int failureThreshold;
+    private final long firstOpenMillis;
+
+    // the token bucket, guarded by this
+    private double rate;
+    private double tokens;
+    private long refilledAt = System.nanoTime();
+    // nanoTime has an arbitrary origin, the first decrease must not wait
+    private long decreasedAt = System.nanoTime() - TimeUnit.SECONDS.toNanos(1) - 1L;
+
+    // the circuit breaker, guarded by this
+    private State state = State.CLOSED;
+    private int consecutiveFailures = 0;
+    private long openMillis;
+    private long openUntil = 0L;
+    private boolean probing = false;
+
+    public ClusterThrottle(String clusterName, double maxRate, double minRate, long targetLatencyMillis,
+            int failureThreshold, long openMillis) {
+        this.clusterName = clusterName;
+        this.maxRate = maxRate;
+        this.minRate = Math.min(minRate, maxRate);
+        this.targetLatencyMillis = targetLatencyMillis;
+        this.failureThreshold = failureThreshold;
+        this.firstOpenMillis = openMillis;
+        this.openMillis = openMillis;
+        this.rate = maxRate;
+        this.tokens = Math.max(1.0, maxRate);
+    }
+
+    /**
+     * Get the shared throttle of the given cluster, one instance per pbs.host
+     */
+    public static ClusterThrottle forCluster(String clusterName) {
+        ClusterThrottle throttle = throttles.get(clusterName);
+        if (throttle == null) {
+            synchronized (throttles) {
+                throttle = throttles.get(clusterName);
+                if (throttle == null) {
+                    throttle = fromSystemProperties(clusterName);
+                    throttles.put(clusterName, throttle);
+                }
+            }
+        }
+        return throttle;
+    }
+
+    private static ClusterThrottle fromSystemProperties(String clusterName) {
+        return new ClusterThrottle(clusterName,
+                doubleProperty("pbs.throttle.maxPerSecond", DEFAULT_MAX_PER_SECOND),
+                doubleProperty("pbs.throttle.minPerSecond", DEFAULT_MIN_PER_SECOND),
+                Long.getLong("pbs.throttle.targetLatencyMillis", DEFAULT_TARGET_LATENCY_MILLIS),
+                Integer.getInteger("pbs.throttle.failureThreshold", DEFAULT_FAILURE_THRESHOLD),
+                Long.getLong("pbs.throttle.openMillis", DEFAULT_OPEN_MILLIS));
+    }
+
+    private static double doubleProperty(String name, double defaultValue) {
+        String value = System.getProperty(name);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            log.error("invalid " + name + ": " + value);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * @return true if the error says pbs_server did not answer, as opposed
+     * to an error about the job itself (e.g. Unknown Job Id)
+     */
+    public static boolean isOverload(Throwable t) {
+        if (t instanceof ServerOverloadedException) {
+            return true;
+        }
+        return (t instanceof PbsException || t instanceof IOException) && isOverloadMessage(t.getMessage());
+    }
+
+    public static boolean isOverloadMessage(String message) {
+        if (message == null) {
+            return false;
+        }
+        String lower = message.toLowerCase();
+        for (String overload : OVERLOAD_MESSAGES) {
+            if (lower.contains(overload)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public SchedulerCommandExecutor.CommandResult execute(String... command) throws IOException, InterruptedException, PbsException {
+        return execute(false, command, SchedulerCommandExecutor.getInstance().getDefaultTimeoutMillis(), null);
+    }
+
+    /**
+     * Run a command which must not be dropped (qsub, qdel), we wait while the
+     * breaker is open, up to the command timeout
+     */
+    public SchedulerCommandExecutor.CommandResult executeWaiting(String... command) throws IOException, InterruptedException, PbsException {
+        return execute(true, command, SchedulerCommandExecutor.getInstance().getDefaultTimeoutMillis(), null);
+    }
+
+    /**
+     * Run a command which must not be dropped, with the given input, e.g.
+     * qsub with the job script on its stdin
+     */
+    public SchedulerCommandExecutor.CommandResult executeWaiting(String[] command, String stdin) throws IOException, InterruptedException, PbsException {
+        return execute(true, command, SchedulerCommandExecutor.getInstance().getDefaultTimeoutMillis(), null, stdin);
+    }
+
+    public SchedulerCommandExecutor.CommandResult execute(boolean waitForServer, String[] command, long timeoutMillis,
+            SchedulerCommandExecutor.StdoutHandler handler) throws IOException, InterruptedException, PbsException {
+        return execute(waitForServer, command, timeoutMillis, handler, null);
+    }
+
+    /**
+     * Run the command when the throttle lets it through
+     *
+     * @param waitForServer wait while the breaker is open instead of failing
+     * with a ServerOverloadedException
+     * @param stdin the input of the command, or null
+     */
+    public SchedulerCommandExecutor.CommandResult execute(boolean waitForServer, String[] command, long timeoutMillis,
+            SchedulerCommandExecutor.StdoutHandler handler, String stdin) throws IOException, InterruptedException, PbsException {
+        acquire(waitForServer, timeoutMillis);
+        boolean recorded = false;
+        long start = System.nanoTime();
+        try {
+            SchedulerCommandExecutor.CommandResult result = SchedulerCommandExecutor.getInstance().execute(command, timeoutMillis, handler, stdin);
+            long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            if (result.hasErrors() && isOverloadMessage(result.getStderr())) {
+                onFailure(command[0] + ": " + result.getStderr().trim());
+            } else {
+                onSuccess(elapsed);
+            }
+            recorded = true;
+            return result;
+        } catch (IOException e) {
+            // e.g. the command is not in the PATH, that is a configuration
+            // error and says nothing about pbs_server
+            if (isOverload(e)) {
+                onFailure(command[0] + ": " + e.getMessage());
+                recorded = true;
+            }
+            throw e;
+        } catch (PbsException e) {
+            // the command timed out
+            onFailure(e.getMessage());
+            recorded = true;
+            throw e;
+        } finally {
+            if (!recorded) {
+                releaseProbe();
+            }
+        }
+    }
+
+    private void acquire(boolean waitForServer, long maxWaitMillis) throws InterruptedException, ServerOverloadedException {
+        long deadline = System.currentTimeMillis() + maxWaitMillis;
+        while (true) {
+            long tokenWait;
+            long retry;
+            boolean probe = false;
+            synchronized (this) {
+                long now = System.currentTimeMillis();
+                if (state == State.OPEN && now >= openUntil) {
+                    state = State.HALF_OPEN;
+                }
+                if (state == State.CLOSED || (state == State.HALF_OPEN && !probing)) {
+                    if (state == State.HALF_OPEN) {
+                        // this command is the probe
+                        probing = true;
+                        probe = true;
+                    }
+                    tokenWait = takeToken();
+                    retry = 0L;
+                } else {
+                    retry = state == State.OPEN ? openUntil - now : Math.min(1000L, openMillis);
+                    if (!waitForServer || now + retry > deadline) {
+                        throw new ServerOverloadedException(clusterName, retry);
+                    }
+                    tokenWait = -1L;
+                }
+            }
+            if (tokenWait >= 0) {
+                // we have our token, we may have to wait until it is due
+                try {
+                    if (tokenWait > 0) {
+                        Thread.sleep(tokenWait);
+                    }
+                } catch (InterruptedException e) {
+                    if (probe) {
+                        releaseProbe();
+                    }
+                    throw e;
+                }
+                return;
+            }
+            Thread.sleep(retry);
+        }
+    }
+
+    /**
+     * Take a token from the bucket, the bucket can go below zero, then the
+     * caller waits until its token would have been there
+     *
+     * @return how long to wait in ms
+     */
+    private long takeToken() {
+        if (maxRate <= 0) {
+            return 0L;
+        }
+        long now = System.nanoTime();
+        double capacity = Math.max(1.0, rate);
+        tokens = Math.min(capacity, tokens + (now - refilledAt) / 1e9 * rate);
+        refilledAt = now;
+        tokens -= 1.0;
+        if (tokens >= 0) {
+            return 0L;
+        }
+        return (long) Math.ceil(-tokens / rate * 1000.0);
+    }
+
+    private synchronized void onSuccess(long elapsedMillis) {
+        consecutiveFailures = 0;
+        if (state == State.HALF_OPEN) {
+            log.info("pbs_server " + clusterName + " answers again, closing the circuit breaker");
+            state = State.CLOSED;
+            openMillis = firstOpenMillis;
+            probing = false;
+        }
+        if (elapsedMillis > targetLatencyMillis) {
+            decreaseRate();
+        } else if (maxRate > 0) {
+            rate = Math.min(maxRate, rate + maxRate / 50.0);
+        }
+    }
+
+    private synchronized void onFailure(String message) {
+        consecutiveFailures++;
+        decreaseRate();
+        if (state == State.HALF_OPEN) {
+            // the probe failed, wait longer this time
+            openMillis = Math.min(MAX_OPEN_MILLIS, openMillis * 2);
+            open(message);
+        } else if (state == State.CLOSED && consecutiveFailures >= failureThreshold) {
+            open(message);
+        }
+    }
+
+    private void open(String message) {
+        state = State.OPEN;
+        probing = false;
+        openUntil = System.currentTimeMillis() + openMillis;
+        log.warn("pbs_server " + clusterName + " is overloaded (" + message + "), no commands for " + openMillis + " ms");
+    }
+
+    private void decreaseRate() {
+        long now = System.nanoTime();
+        if (maxRate > 0 && now - decreasedAt > TimeUnit.SECONDS.toNanos(1)) {
+            rate = Math.max(minRate, rate / 2.0);
+            decreasedAt = now;
+        }
+    }
+
+    private synchronized void releaseProbe() {
+        probing = false;
+    }
+
+    public String getClusterName() {
+        return clusterName;
+    }
+
+    public synchronized State getState() {
+        if (state == State.OPEN && System.currentTimeMillis() >= openUntil) {
+            return State.HALF_OPEN;
+        }
+        return state;
+    }
+
+    /**
+     * @return the current rate in commands per second
+     */
+    public synchronized double getRate() {
+        return rate;
+    }
+
+    public synchronized int getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%s: %s, %.2f commands/s, %d failures in a row", clusterName, state, rate, consecutiveFailures);
+    }
+}
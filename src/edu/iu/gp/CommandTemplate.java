@@ -5,12 +5,18 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.attribute.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.jar.Attributes;
+import org.apache.log4j.Logger;
 
 /**
  *
@@ -18,9 +24,24 @@ import java.util.jar.Attributes;
  */
 public class CommandTemplate {
 
+    private static final Logger log = Logger.getLogger(CommandTemplate.class);
+
+    /**
+     * Change the version when the shared epilogue script changes, the jobs
+     * which are still running keep the script they were submitted with
+     */
+    public static final int EPILOGUE_VERSION = 2;
+    public static final String SHARED_EPILOGUE = ".gp-epilogue-v" + EPILOGUE_VERSION + ".sh";
+
+    /**
+     * The jobs directories we installed the shared epilogue in
+     */
+    private static final Set<String> installed = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
     private String command;
     private String workDir;
     private String comments;
+    private String directives = "";
     private String pbsFile;
     private String epiFile;
     private String header = "#!/bin/bash";
@@ -35,6 +56,13 @@ public class CommandTemplate {
         this.comments = commnets;
     }
 
+    /**
+     * @param directives the #PBS lines, they go right after the header
+     */
+    public void setDirectives(String directives) {
+        this.directives = directives;
+    }
+
     public String getPbsFileName() {
         return pbsFile;
     }
@@ -43,18 +71,28 @@ public class CommandTemplate {
         return epiFile;
     }
 
+    /**
+     * @return the job script, the one we write to .command.pbs or send to
+     * the stdin of qsub
+     */
+    public String getScript() {
+        StringBuilder script = new StringBuilder(header.length() + directives.length() + command.length() + 64);
+        script.append(header).append("\n");
+        script.append(directives);
+        if (comments != null) {
+            script.append("# ").append(comments).append("\n");
+        }
+        script.append(command).append("\n");
+        return script.toString();
+    }
+
     public void createExecutableFile() throws IOException {
 
         File pbsOutFile = new File(workDir, ".command.pbs");
-        BufferedWriter pbsOut = new BufferedWriter(new FileWriter(pbsOutFile, true));
-
-        pbsOut.write(header + "\n");
+        // we replace the script of an earlier try of the job
+        BufferedWriter pbsOut = new BufferedWriter(new FileWriter(pbsOutFile, false));
 
-        if (comments != null) {
-            pbsOut.write("# " + comments);
-        }
-
-        pbsOut.write(command + "\n");
+        pbsOut.write(getScript());
 
         pbsOut.close();
 
@@ -76,22 +114,18 @@ public class CommandTemplate {
         epiOutFile.setExecutable(true);
         epiOutFile.setWritable(true);
 
-        BufferedWriter epiOut = new BufferedWriter(new FileWriter(epiOutFile, true));
+        // we replace the script of an earlier try of the job
+        BufferedWriter epiOut = new BufferedWriter(new FileWriter(epiOutFile, false));
 
-        String epilog = epiOutFile.getAbsolutePath().replace("sh", "pbs");
+        // .pbs/.epilogue.pbs next to the script
+        String epilog = EpilogueRecord.epilogueFile(new File(workDir)).getAbsolutePath();
 
         epiOut.write(header + "\n");
 
-        String epiCommand = "echo \"Job ID:${1}\" >>" + epilog + "\n"
-                + "echo \"User_ID:${2}\" >>" + epilog + "\n"
-                + "echo \"Group_ID:${3}\">>" + epilog + "\n"
-                + "echo \"Job_Name:${4}\">>" + epilog + "\n"
-                + "echo \"Session_ID:${5}\">>" + epilog + "\n"
-                + "echo \"Resource_List:${6}\">>" + epilog + "\n"
-                + "echo \"Resources_Used:${7}\">>" + epilog + "\n"
-                + "echo \"Queue_Name:${8}\">>" + epilog + "\n"
-                + "echo \"Account_String:${9}\">>" + epilog + "\n"
-                + "echo \"Job_Exit_Code:${10}\">>" + epilog + "\n"
+        // we write the output into a temp file with a single write and rename
+        // it into place, so the job runner never sees a half written output
+        String epiCommand = "epilog=\"" + epilog + "\"\n"
+                + writeEpilogueOutput()
                 + "exit 0 \n";
 
         epiOut.write(epiCommand + "\n");
@@ -108,10 +142,125 @@ public class CommandTemplate {
 
     }
 
-    
+    /**
+     * Get the shared epilogue script of the jobs in the given directory, it
+     * is installed the first time we need it.
+     *
+     * Writing a .pbs directory and an executable script for every job costs
+     * a mkdir, a create, a write and a chmod on the NFS jobs directory for
+     * every submission. The shared script gets the working directory of the
+     * job from GP_WORKDIR, which the job passes with "#PBS -v", see
+     * PbsDirectives. If Torque does not give it to the epilogue, the script
+     * finds the directory from the job name, $4 in the epilogue arguments,
+     * gp-job-(job number)-(user), which must be jobsDir/(job number). Torque
+     * may cut the job name, so the job number is only used when the user
+     * follows it. The .pbs directory is created on the node when the job is
+     * done, in an existing working directory only.
+     *
+     * @param jobsDir the directory which has the working directories of
+     * the jobs, named by their job numbers
+     * @return the path of the script
+     */
+    public static String sharedEpilogueFile(File jobsDir) throws IOException {
+        File script = new File(jobsDir, SHARED_EPILOGUE);
+        String path = script.getAbsolutePath();
+        if (installed.contains(path)) {
+            return path;
+        }
+        synchronized (installed) {
+            if (!installed.contains(path)) {
+                installSharedEpilogue(script, sharedEpilogue(jobsDir));
+                installed.add(path);
+            }
+        }
+        return path;
+    }
+
+    static String sharedEpilogue(File jobsDir) {
+        return "#!/bin/bash\n"
+                + "# GenePattern PBS epilogue v" + EPILOGUE_VERSION + ", shared by the jobs in this directory\n"
+                + "# the working directory of the job, from qsub -v GP_WORKDIR\n"
+                + "dir=\"$GP_WORKDIR\"\n"
+                + "if [ -z \"$dir\" ]; then\n"
+                + "# $4 is the job name, gp-job-<job number>-<user>, which Torque may cut\n"
+                + "rest=${4#gp-job-}\n"
+                + "case \"$rest\" in\n"
+                + "[0-9]*-?*) ;;\n"
+                + "*) exit 0 ;;\n"
+                + "esac\n"
+                + "no=${rest%%-*}\n"
+                + "case \"$no\" in\n"
+                + "''|*[!0-9]*) exit 0 ;;\n"
+                + "esac\n"
+                + "dir=" + SchedulerShell.quote(jobsDir.getAbsolutePath()) + "/\"$no\"\n"
+                + "fi\n"
+                + "[ -d \"$dir\" ] || exit 0\n"
+                + "mkdir -p \"$dir/.pbs\" || exit 0\n"
+                + "epilog=\"$dir/.pbs/.epilogue.pbs\"\n"
+                + writeEpilogueOutput()
+                + "exit 0\n";
+    }
+
+    /**
+     * Write the script into a temp file, make it executable and rename it
+     * into place, unless the same script is there already
+     */
+    private static void installSharedEpilogue(File script, String content) throws IOException {
+        byte[] data = content.getBytes(StandardCharsets.UTF_8);
+        try {
+            if (Arrays.equals(data, Files.readAllBytes(script.toPath())) && script.canExecute()) {
+                return;
+            }
+        } catch (NoSuchFileException e) {
+            // not installed yet
+        }
+        Path tmp = Files.createTempFile(script.getParentFile().toPath(), SHARED_EPILOGUE, ".tmp",
+                PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwxr-xr-x")));
+        try {
+            Files.write(tmp, data);
+            try {
+                Files.move(tmp, script.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, script.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        log.info("installed the shared epilogue script " + script);
+    }
+
+    /**
+     * The shell commands which write the epilogue arguments into the file
+     * named by $epilog, with a single write into a temp file which is then
+     * renamed into place
+     */
+    static String writeEpilogueOutput() {
+        return "tmp=\"$epilog.$$\"\n"
+                + "cat > \"$tmp\" <<EOF\n"
+                + "Job ID:${1}\n"
+                + "User_ID:${2}\n"
+                + "Group_ID:${3}\n"
+                + "Job_Name:${4}\n"
+                + "Session_ID:${5}\n"
+                + "Resource_List:${6}\n"
+                + "Resources_Used:${7}\n"
+                + "Queue_Name:${8}\n"
+                + "Account_String:${9}\n"
+                + "Job_Exit_Code:${10}\n"
+                + "EOF\n"
+                + "mv -f \"$tmp\" \"$epilog\"\n";
+    }
+
+    /**
+     * Torque only runs an epilogue script which is executable by its owner
+     */
+    static void setOwnerExecutable(Path path) throws IOException {
+        setPermission(path, PosixFilePermission.OWNER_EXECUTE);
+    }
+
     private static void setPermission(Path path, PosixFilePermission permission)
             throws IOException {
-        System.out.println("\nSetting permission for " + path.getFileName());
+        log.debug("setting permission for " + path.getFileName());
         PosixFileAttributeView view = Files.getFileAttributeView(path,
                 PosixFileAttributeView.class);
 
@@ -121,8 +270,6 @@ public class CommandTemplate {
         permissions.add(permission);
 
         view.setPermissions(permissions);
-        System.out.println();
-
     }
 
     
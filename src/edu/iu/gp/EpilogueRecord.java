@@ -0,0 +1,252 @@
+package edu.iu.gp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The .pbs/.epilogue.pbs output of a finished job.
+ *
+ * The epilogue script writes the file once, into a temp file which is renamed
+ * into place, so when the file exists it is complete. We parse it once and
+ * keep the record per job, the job runner may ask for the status of a
+ * completed job many times.
+ *
+ * The file looks like
+ * <pre>
+ * Job ID:265066.m1.mason
+ * Job_Name:gp-job-65066-user35
+ * Resources_Used:cput=00:00:14,mem=4232kb,vmem=112640kb,walltime=00:00:05
+ * Queue_Name:batch
+ * Job_Exit_Code:0
+ * </pre>
+ *
+ * @author lewu@iu.edu
+ */
+public class EpilogueRecord {
+
+    /**
+     * The number of parsed epilogue outputs we keep
+     */
+    public static final int MAX_CACHED_RECORDS = 10000;
+
+    private static final Map<String, EpilogueRecord> cache = Collections.synchronizedMap(
+            new LinkedHashMap<String, EpilogueRecord>(256, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, EpilogueRecord> eldest) {
+                    return size() > MAX_CACHED_RECORDS;
+                }
+            });
+
+    private final String jobId;
+    private final String jobName;
+    private final String queue;
+    private final Integer exitCode;
+    private final long cpuTime;
+    private final long walltime;
+    private final long mem;
+    private final long vmem;
+
+    private EpilogueRecord(String jobId, String jobName, String queue, Integer exitCode,
+            long cpuTime, long walltime, long mem, long vmem) {
+        this.jobId = jobId;
+        this.jobName = jobName;
+        this.queue = queue;
+        this.exitCode = exitCode;
+        this.cpuTime = cpuTime;
+        this.walltime = walltime;
+        this.mem = mem;
+        this.vmem = vmem;
+    }
+
+    /**
+     * Get the epilogue output of a job, the file is read and parsed only once.
+     *
+     * @param workDir the job working directory
+     * @return the record, or null if the epilogue output is not there
+     */
+    public static EpilogueRecord forJob(File workDir) throws IOException {
+        File file = epilogueFile(workDir);
+        String key = file.getPath();
+        EpilogueRecord record = cache.get(key);
+        if (record != null) {
+            return record;
+        }
+        record = read(file);
+        // an old epilogue script appends line by line, we don't keep a half
+        // written output
+        if (record != null && record.isComplete()) {
+            cache.put(key, record);
+        }
+        return record;
+    }
+
+    /**
+     * Remove the record of a job from the cache
+     */
+    public static void evict(File workDir) {
+        cache.remove(epilogueFile(workDir).getPath());
+    }
+
+    public static File epilogueFile(File workDir) {
+        return new File(new File(workDir, ".pbs"), EpilogueWatcher.EPILOGUE_OUTPUT);
+    }
+
+    /**
+     * @return the parsed file, or null if it does not exist
+     */
+    public static EpilogueRecord read(File file) throws IOException {
+        byte[] data;
+        try {
+            data = Files.readAllBytes(file.toPath());
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        return parse(new String(data, StandardCharsets.UTF_8));
+    }
+
+    public static EpilogueRecord parse(CharSequence epiData) {
+        String jobId = null;
+        String jobName = null;
+        String queue = null;
+        Integer exitCode = null;
+        long cpuTime = QstatRecord.UNKNOWN;
+        long walltime = QstatRecord.UNKNOWN;
+        long mem = QstatRecord.UNKNOWN;
+        long vmem = QstatRecord.UNKNOWN;
+
+        int length = epiData.length();
+        int start = 0;
+        while (start < length) {
+            int end = start;
+            while (end < length && epiData.charAt(end) != '\n') {
+                end++;
+            }
+            int colon = indexOf(epiData, ':', start, end);
+            if (colon > 0) {
+                String key = epiData.subSequence(start, colon).toString().trim();
+                int from = colon + 1;
+                if (key.equals("Job_Exit_Code")) {
+                    String value = trimmed(epiData, from, end);
+                    try {
+                        exitCode = Integer.valueOf(value);
+                    } catch (NumberFormatException e) {
+                        exitCode = null;
+                    }
+                } else if (key.equals("Queue_Name")) {
+                    queue = trimmed(epiData, from, end);
+                } else if (key.equals("Job ID")) {
+                    jobId = trimmed(epiData, from, end);
+                } else if (key.equals("Job_Name")) {
+                    jobName = trimmed(epiData, from, end);
+                } else if (key.equals("Resources_Used")) {
+                    // cput=00:00:14,mem=4232kb,vmem=112640kb,walltime=00:00:05
+                    int p = from;
+                    while (p < end) {
+                        int comma = indexOf(epiData, ',', p, end);
+                        int next = comma < 0 ? end : comma;
+                        int eq = indexOf(epiData, '=', p, next);
+                        if (eq > 0) {
+                            String res = epiData.subSequence(p, eq).toString().trim();
+                            if (res.equals("cput")) {
+                                cpuTime = QstatParser.decodeDuration(epiData, eq + 1, next);
+                            } else if (res.equals("walltime")) {
+                                walltime = QstatParser.decodeDuration(epiData, eq + 1, next);
+                            } else if (res.equals("mem")) {
+                                mem = QstatParser.decodeMemory(epiData, eq + 1, next);
+                            } else if (res.equals("vmem")) {
+                                vmem = QstatParser.decodeMemory(epiData, eq + 1, next);
+                            }
+                        }
+                        p = next + 1;
+                    }
+                }
+            }
+            start = end + 1;
+        }
+        return new EpilogueRecord(jobId, jobName, queue, exitCode, cpuTime, walltime, mem, vmem);
+    }
+
+    /**
+     * @return true if the file had the Job_Exit_Code, the last line written
+     * by the epilogue script
+     */
+    public boolean isComplete() {
+        return exitCode != null;
+    }
+
+    public boolean isSuccess() {
+        return exitCode != null && exitCode == 0;
+    }
+
+    public String getJobId() {
+        return jobId;
+    }
+
+    public String getJobName() {
+        return jobName;
+    }
+
+    public String getQueue() {
+        return queue;
+    }
+
+    public Integer getExitCode() {
+        return exitCode;
+    }
+
+    /**
+     * @return the cpu time in seconds or null
+     */
+    public Long getCpuTime() {
+        return known(cpuTime);
+    }
+
+    /**
+     * @return the walltime in seconds or null
+     */
+    public Long getWalltime() {
+        return known(walltime);
+    }
+
+    /**
+     * @return the memory usage in bytes or null
+     */
+    public Long getMem() {
+        return known(mem);
+    }
+
+    /**
+     * @return the virtual memory usage in bytes or null
+     */
+    public Long getVmem() {
+        return known(vmem);
+    }
+
+    private static Long known(long value) {
+        return value == QstatRecord.UNKNOWN ? null : value;
+    }
+
+    private static int indexOf(CharSequence s, char c, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (s.charAt(i) == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static String trimmed(CharSequence s, int start, int end) {
+        return s.subSequence(start, end).toString().trim();
+    }
+
+    @Override
+    public String toString() {
+        return "EpilogueRecord[" + jobId + ", exit=" + exitCode + "]";
+    }
+}
@@ -0,0 +1,251 @@
+package edu.iu.gp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import org.apache.log4j.Logger;
+
+/**
+ * Detect the finished jobs from the epilogue output instead of qstat.
+ *
+ * The epilogue script writes .pbs/.epilogue.pbs into the job working
+ * directory when the job is done. We register the .pbs directory of every
+ * job with a WatchService, so we know that a job has finished as soon as the
+ * file is created, and the job runner does not need to run qstat for it.
+ *
+ * inotify does not see the files written by other hosts on NFS, which is
+ * where the working directories usually are, so we also scan the watched
+ * directories periodically. The directories on an NFS file store are only
+ * scanned.
+ *
+ * To use this, set the system property pbs.epilogueWatcher=true, the scan
+ * interval can be set with pbs.epilogueWatcher.pollMillis.
+ *
+ * @author lewu@iu.edu
+ */
+public class EpilogueWatcher {
+
+    private static final Logger log = Logger.getLogger(EpilogueWatcher.class);
+
+    public static final String EPILOGUE_OUTPUT = ".epilogue.pbs";
+
+    public static final long DEFAULT_POLL_MILLIS = 5000L;
+
+    private enum State {
+        WATCHING, COMPLETE
+    }
+
+    private final long pollMillis;
+    private final WatchService watchService;
+    private final Map<Path, State> jobs = new ConcurrentHashMap<Path, State>();
+    private final Map<Path, WatchKey> keys = new ConcurrentHashMap<Path, WatchKey>();
+    private final ScheduledExecutorService scanner;
+    private final Thread eventReader;
+
+    public EpilogueWatcher(long pollMillis) throws IOException {
+        this.pollMillis = pollMillis;
+        this.watchService = FileSystems.getDefault().newWatchService();
+
+        ThreadFactory tf = new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "pbs-epilogue-scanner");
+                t.setDaemon(true);
+                return t;
+            }
+        };
+        this.scanner = Executors.newSingleThreadScheduledExecutor(tf);
+        this.scanner.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                scan();
+            }
+        }, pollMillis, pollMillis, TimeUnit.MILLISECONDS);
+
+        this.eventReader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readEvents();
+            }
+        }, "pbs-epilogue-watcher");
+        this.eventReader.setDaemon(true);
+        this.eventReader.start();
+    }
+
+    /**
+     * @return a watcher if the system property pbs.epilogueWatcher is true,
+     * otherwise null
+     */
+    public static EpilogueWatcher fromSystemProperties() {
+        if (!Boolean.getBoolean("pbs.epilogueWatcher")) {
+            return null;
+        }
+        long poll = Long.getLong("pbs.epilogueWatcher.pollMillis", DEFAULT_POLL_MILLIS);
+        try {
+            EpilogueWatcher watcher = new EpilogueWatcher(poll);
+            log.info("watching the epilogue outputs, scanning every " + poll + " ms");
+            return watcher;
+        } catch (IOException e) {
+            log.error("can not start the epilogue watcher, we will use qstat only", e);
+            return null;
+        }
+    }
+
+    public long getPollMillis() {
+        return pollMillis;
+    }
+
+    /**
+     * Start watching the .pbs directory of a job, it is fine to call this
+     * again for a job we already watch.
+     *
+     * @param workDir the job working directory
+     */
+    public void watch(File workDir) {
+        Path dir = pbsDir(workDir);
+        if (jobs.containsKey(dir)) {
+            return;
+        }
+        jobs.put(dir, State.WATCHING);
+
+        // the .pbs directory may not be there yet, we look at the working
+        // directory, and the directories on NFS are scanned
+        if (isLocal(dir.getParent())) {
+            try {
+                // the shared epilogue script creates the .pbs directory when
+                // the job is done, we need it now to watch it
+                Files.createDirectories(dir);
+                keys.put(dir, dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY));
+            } catch (IOException e) {
+                // the directory will be scanned
+                log.debug("can not register " + dir + " with the watch service: " + e.getMessage());
+            }
+        }
+
+        // the job may have finished before we registered the directory
+        checkEpilogue(dir);
+    }
+
+    /**
+     * @return true if the epilogue output of the job has been written
+     */
+    public boolean isComplete(File workDir) {
+        return jobs.get(pbsDir(workDir)) == State.COMPLETE;
+    }
+
+    public boolean isWatching(File workDir) {
+        return jobs.containsKey(pbsDir(workDir));
+    }
+
+    /**
+     * Stop watching a job, we call it after the final status of the job has
+     * been reported
+     */
+    public void forget(File workDir) {
+        Path dir = pbsDir(workDir);
+        jobs.remove(dir);
+        WatchKey key = keys.remove(dir);
+        if (key != null) {
+            key.cancel();
+        }
+    }
+
+    public int getWatchedCount() {
+        return jobs.size();
+    }
+
+    public void close() {
+        scanner.shutdownNow();
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            log.error(e);
+        }
+        jobs.clear();
+        keys.clear();
+    }
+
+    private void readEvents() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                Path dir = (Path) key.watchable();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        // we lost some events, check the directory itself
+                        checkEpilogue(dir);
+                    } else if (EPILOGUE_OUTPUT.equals(String.valueOf(event.context()))) {
+                        complete(dir);
+                    }
+                }
+                if (!key.reset()) {
+                    keys.remove(dir);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ClosedWatchServiceException e) {
+            // closed by the job runner
+        }
+    }
+
+    private void scan() {
+        try {
+            for (Map.Entry<Path, State> entry : jobs.entrySet()) {
+                if (entry.getValue() == State.WATCHING) {
+                    checkEpilogue(entry.getKey());
+                }
+            }
+        } catch (RuntimeException e) {
+            // we must not kill the scheduled task
+            log.error("error while scanning the epilogue outputs", e);
+        }
+    }
+
+    private void checkEpilogue(Path dir) {
+        if (Files.exists(dir.resolve(EPILOGUE_OUTPUT))) {
+            complete(dir);
+        }
+    }
+
+    private void complete(Path dir) {
+        // only the jobs we still watch, not the ones we have forgotten
+        if (jobs.replace(dir, State.WATCHING, State.COMPLETE)) {
+            log.debug("epilogue output found in " + dir);
+            WatchKey key = keys.remove(dir);
+            if (key != null) {
+                key.cancel();
+            }
+        }
+    }
+
+    /**
+     * @return true if the directory is there and not on NFS
+     */
+    private static boolean isLocal(Path dir) {
+        try {
+            String type = Files.getFileStore(dir).type();
+            return type == null || !type.toLowerCase().startsWith("nfs");
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static Path pbsDir(File workDir) {
+        return new File(workDir, ".pbs").getAbsoluteFile().toPath();
+    }
+}
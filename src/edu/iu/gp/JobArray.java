@@ -0,0 +1,191 @@
+package edu.iu.gp;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A number of compatible jobs submitted with one "qsub -t" as a Torque job
+ * array.
+ *
+ * Every job keeps its own working directory and its own .command.pbs. The
+ * array runs a small dispatcher script, which picks the command file of the
+ * job from $PBS_ARRAYID, and an array epilogue, which picks the epilogue
+ * output of the job from the index in the element id (e.g. 123[4].m1), so
+ * the job runner sees the same files as for a job submitted on its own.
+ *
+ * The element ids look like 123[4].m1.mason, they are used as the pbs job id
+ * of the jobs, so qstat, qdel and the cluster snapshot work the same way.
+ *
+ * @author lewu@iu.edu
+ */
+public class JobArray {
+
+    private final List<PbsJob> jobs;
+    private final String name;
+    private final File scriptDir;
+    private String dispatcherFile;
+    private String epilogueFile;
+
+    /**
+     * @param jobs the jobs of the array, they must have the same array key
+     */
+    public JobArray(List<PbsJob> jobs) {
+        if (jobs.isEmpty()) {
+            throw new IllegalArgumentException("a job array needs at least one job");
+        }
+        this.jobs = Collections.unmodifiableList(new ArrayList<PbsJob>(jobs));
+        PbsJob first = jobs.get(0);
+        this.name = first.getName().startsWith("gp-job-")
+                ? "gp-array-" + first.getName().substring("gp-job-".length()) : "gp-array-" + first.getName();
+        // the array scripts are kept with the first job
+        this.scriptDir = new File(first.getOutputDir(), ".pbs");
+    }
+
+    public List<PbsJob> getJobs() {
+        return jobs;
+    }
+
+    public int size() {
+        return jobs.size();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Write the dispatcher and the array epilogue scripts
+     */
+    public void createScripts() throws IOException {
+        if (!scriptDir.exists()) {
+            scriptDir.mkdirs();
+        }
+
+        // $1 is the element id, e.g. 123[4].m1
+        StringBuilder epilogue = new StringBuilder("#!/bin/bash\n");
+        epilogue.append("idx=${1#*[}\n");
+        epilogue.append("idx=${idx%%]*}\n");
+        epilogue.append("case \"$idx\" in\n");
+        for (int i = 0; i < jobs.size(); i++) {
+            File epilog = EpilogueRecord.epilogueFile(new File(jobs.get(i).getOutputDir()));
+            epilogue.append(i).append(") epilog=").append(SchedulerShell.quote(epilog.getAbsolutePath())).append(" ;;\n");
+        }
+        epilogue.append("*) exit 0 ;;\n");
+        epilogue.append("esac\n");
+        // the jobs don't have their own epilogue script, which used to
+        // create their .pbs directories
+        epilogue.append("mkdir -p \"$(dirname \"$epilog\")\" || exit 0\n");
+        epilogue.append(CommandTemplate.writeEpilogueOutput());
+        epilogue.append("exit 0\n");
+        File epilogueOut = new File(scriptDir, ".array-epilogue.sh");
+        write(epilogueOut, epilogue.toString());
+        CommandTemplate.setOwnerExecutable(epilogueOut.toPath());
+        this.epilogueFile = epilogueOut.getAbsolutePath();
+
+        // run the command file of the job in its own working directory, with
+        // its own stdout and stderr files, which we append to like the
+        // command of the job does
+        StringBuilder dispatcher = new StringBuilder("#!/bin/bash\n");
+        dispatcher.append(PbsDirectives.forArray(this));
+        dispatcher.append("case \"$PBS_ARRAYID\" in\n");
+        for (int i = 0; i < jobs.size(); i++) {
+            PbsJob job = jobs.get(i);
+            dispatcher.append(i).append(") cd ").append(SchedulerShell.quote(job.getOutputDir()))
+                    .append(" && exec /bin/bash ").append(SchedulerShell.quote(job.getExecutableFile(true)));
+            if (!"N/A".equals(job.getOutputPath())) {
+                dispatcher.append(" >> ").append(SchedulerShell.quote(job.getOutputPath()));
+            }
+            if (!"N/A".equals(job.getErrrorPath())) {
+                dispatcher.append(" 2>> ").append(SchedulerShell.quote(job.getErrrorPath()));
+            }
+            dispatcher.append(" ;;\n");
+        }
+        dispatcher.append("*) echo \"unknown job array index $PBS_ARRAYID\" >&2; exit 1 ;;\n");
+        dispatcher.append("esac\n");
+        File dispatcherOut = new File(scriptDir, ".array.sh");
+        write(dispatcherOut, dispatcher.toString());
+        this.dispatcherFile = dispatcherOut.getAbsolutePath();
+    }
+
+    /**
+     * @return the qsub command of the whole array, the options are #PBS
+     * directives of the dispatcher script, createScripts() must be called
+     * first
+     */
+    public String[] getQsubCommand() {
+        return new String[]{"qsub", dispatcherFile};
+    }
+
+    /**
+     * @return the array epilogue script, set by createScripts()
+     */
+    public String getEpilogueFile() {
+        return epilogueFile;
+    }
+
+    /**
+     * @return the directory of the dispatcher and epilogue scripts and of the
+     * stdout and stderr of the array
+     */
+    public File getScriptDir() {
+        return scriptDir;
+    }
+
+    /**
+     * @param arrayId the id returned by qsub, e.g. 123[].m1.mason
+     * @return the element ids in the order of the jobs
+     */
+    public List<String> elementIds(String arrayId) {
+        List<String> ids = new ArrayList<String>(jobs.size());
+        for (int i = 0; i < jobs.size(); i++) {
+            ids.add(elementId(arrayId, i));
+        }
+        return ids;
+    }
+
+    /**
+     * @return the id of one element, e.g. 123[4].m1.mason
+     */
+    public static String elementId(String arrayId, int index) {
+        int open = arrayId.indexOf("[]");
+        if (open >= 0) {
+            return arrayId.substring(0, open) + "[" + index + "]" + arrayId.substring(open + 2);
+        }
+        int dot = arrayId.indexOf('.');
+        if (dot < 0) {
+            return arrayId + "[" + index + "]";
+        }
+        return arrayId.substring(0, dot) + "[" + index + "]" + arrayId.substring(dot);
+    }
+
+    /**
+     * @return the array index of an element id, or -1 if it is not an element
+     */
+    public static int indexOf(String pbsId) {
+        int open = pbsId.indexOf('[');
+        int close = pbsId.indexOf(']', open + 1);
+        if (open < 0 || close <= open + 1) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(pbsId.substring(open + 1, close));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static void write(File file, String content) throws IOException {
+        BufferedWriter out = new BufferedWriter(new FileWriter(file));
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+        file.setExecutable(true);
+    }
+}
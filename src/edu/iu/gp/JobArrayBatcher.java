@@ -0,0 +1,182 @@
+package edu.iu.gp;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.log4j.Logger;
+
+/**
+ * Collect the compatible job submissions over a short window and submit
+ * them as one job array.
+ *
+ * A GenePattern batch run or a scatter step arrives as hundreds of startJob
+ * calls for the same module, which ask for the same queue, host, ppn, vmem
+ * and walltime. The first submission of a kind opens a batch, the others
+ * join it until the window is over or the batch is full, then one qsub -t
+ * submits the whole batch and every caller gets the id of its own array
+ * element. A batch of one job, and a job with dependencies, is submitted on
+ * its own.
+ *
+ * The first job only waits while there are submissions in the pipeline
+ * which have not reached the batcher yet, and could join the batch. The
+ * GenePattern dispatcher calls startJob one job at a time, then there is
+ * never another submission and the job is submitted right away, without
+ * the window.
+ *
+ * The SubmissionPipeline uses a batcher when the system property
+ * pbs.array.windowMillis is set, e.g. 2000, the largest array can be set
+ * with pbs.array.maxSize.
+ *
+ * @author lewu@iu.edu
+ */
+public class JobArrayBatcher {
+
+    private static final Logger log = Logger.getLogger(JobArrayBatcher.class);
+
+    public static final int DEFAULT_MAX_SIZE = 200;
+
+    /**
+     * How often the first job of a batch checks whether more jobs can come
+     */
+    private static final long POLL_MILLIS = 10L;
+
+    private final SchedulerBackend backend;
+    private final long windowMillis;
+    private final int maxSize;
+    private final Map<String, Batch> open = new HashMap<String, Batch>();
+
+    /**
+     * The submissions of the pipeline, from the script stage until the
+     * pbs job id is returned
+     */
+    private final AtomicInteger submissions;
+
+    /**
+     * The submissions which are in submit()
+     */
+    private final AtomicInteger inside = new AtomicInteger();
+
+    /**
+     * @param submissions the number of submissions in the pipeline, the
+     * batcher stops waiting when they are all in the batcher
+     */
+    public JobArrayBatcher(SchedulerBackend backend, long windowMillis, int maxSize, AtomicInteger submissions) {
+        this.backend = backend;
+        this.windowMillis = windowMillis;
+        this.maxSize = maxSize;
+        this.submissions = submissions;
+    }
+
+    public long getWindowMillis() {
+        return windowMillis;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Submit the job, alone or as part of an array. This waits until the
+     * batch of the job has been submitted.
+     *
+     * @return the pbs job id of the job, the element id if it was submitted
+     * in an array, e.g. 123[4].m1.mason
+     */
+    public String submit(PbsJob pbsJob) throws IOException, InterruptedException, PbsException {
+        inside.incrementAndGet();
+        try {
+            if (pbsJob.hasDependencies() || maxSize < 2) {
+                return backend.submit(pbsJob);
+            }
+            return submitInBatch(pbsJob);
+        } finally {
+            inside.decrementAndGet();
+        }
+    }
+
+    private String submitInBatch(PbsJob pbsJob) throws IOException, InterruptedException, PbsException {
+
+        String key = pbsJob.getArrayKey();
+        Batch batch;
+        int index;
+        boolean leader = false;
+        synchronized (open) {
+            batch = open.get(key);
+            if (batch == null) {
+                batch = new Batch();
+                open.put(key, batch);
+                leader = true;
+            }
+            index = batch.jobs.size();
+            batch.jobs.add(pbsJob);
+            if (batch.jobs.size() >= maxSize) {
+                open.remove(key);
+                batch.full.countDown();
+            }
+        }
+
+        if (leader) {
+            // the first job waits for the others and submits the batch, it
+            // stops waiting when no other submission can join
+            long deadline = System.currentTimeMillis() + windowMillis;
+            while (submissions.get() > inside.get()) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0 || batch.full.await(Math.min(left, POLL_MILLIS), TimeUnit.MILLISECONDS)) {
+                    break;
+                }
+            }
+            synchronized (open) {
+                if (open.get(key) == batch) {
+                    open.remove(key);
+                }
+            }
+            submitBatch(batch);
+        }
+
+        try {
+            return batch.ids.get().get(index);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof PbsException) {
+                throw new PbsException(cause.getMessage());
+            }
+            if (cause instanceof IOException) {
+                throw new IOException(cause.getMessage(), cause);
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private void submitBatch(Batch batch) {
+        try {
+            List<String> ids;
+            if (batch.jobs.size() == 1) {
+                ids = new ArrayList<String>(1);
+                ids.add(backend.submit(batch.jobs.get(0)));
+            } else {
+                ids = backend.submitArray(new JobArray(batch.jobs));
+                log.debug("submitted " + batch.jobs.size() + " jobs as the job array " + ids.get(0));
+            }
+            batch.ids.complete(ids);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            batch.ids.completeExceptionally(e);
+        } catch (Exception e) {
+            batch.ids.completeExceptionally(e);
+        }
+    }
+
+    private static class Batch {
+        // guarded by open until the batch is closed
+        private final List<PbsJob> jobs = new ArrayList<PbsJob>();
+        private final CountDownLatch full = new CountDownLatch(1);
+        private final CompletableFuture<List<String>> ids = new CompletableFuture<List<String>>();
+    }
+}
@@ -0,0 +1,220 @@
+package edu.iu.gp;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import org.genepattern.drm.DrmJobState;
+import org.genepattern.drm.DrmJobStatus;
+
+/**
+ * The statuses the job runner reported, so getStatus can answer again
+ * without asking the scheduler while the status is still fresh.
+ *
+ * How long a status stays fresh depends on the state of the job and how
+ * long it has been in that state:
+ * <ul>
+ * <li>Q, H and S: a tenth of the time in the state, a job which has been
+ * queued for hours is not going to start in the next second;</li>
+ * <li>R: a tenth of the time it has been running, most jobs finish in their
+ * first minutes, and no more than a tenth of the walltime it has left, so we
+ * also look more often when the job gets close to its walltime;</li>
+ * <li>E, and a C job whose epilogue output is not there yet: minTtl;</li>
+ * <li>DONE or FAILED after the epilogue output was read: forever.</li>
+ * </ul>
+ * The ttl is always between minTtl and maxTtl, except for the final status.
+ * When the EpilogueWatcher says the job is done, a cached non-final status is
+ * not used.
+ *
+ * We also keep the expired statuses of the jobs which are not finished, the
+ * job runner reports them while pbs_server is overloaded.
+ *
+ * The cache is configured with the system properties
+ * <pre>
+ *     pbs.statusCache               false to always ask the scheduler, default true
+ *     pbs.statusCache.minTtlMillis  default 5000
+ *     pbs.statusCache.maxTtlMillis  default 300000
+ * </pre>
+ *
+ * @author lewu@iu.edu
+ */
+public class JobStatusCache {
+
+    public static final long DEFAULT_MIN_TTL_MILLIS = 5000L;
+    public static final long DEFAULT_MAX_TTL_MILLIS = 300000L;
+
+    private static final int MAX_ENTRIES = 10000;
+
+    private final boolean enabled;
+    private final long minTtlMillis;
+    private final long maxTtlMillis;
+
+    private final Map<String, CachedStatus> entries = Collections.synchronizedMap(
+            new LinkedHashMap<String, CachedStatus>(256, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, CachedStatus> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            });
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public JobStatusCache(boolean enabled, long minTtlMillis, long maxTtlMillis) {
+        this.enabled = enabled;
+        this.minTtlMillis = minTtlMillis;
+        this.maxTtlMillis = Math.max(minTtlMillis, maxTtlMillis);
+    }
+
+    public static JobStatusCache fromSystemProperties() {
+        String enabled = System.getProperty("pbs.statusCache");
+        return new JobStatusCache(enabled == null || Boolean.parseBoolean(enabled),
+                Long.getLong("pbs.statusCache.minTtlMillis", DEFAULT_MIN_TTL_MILLIS),
+                Long.getLong("pbs.statusCache.maxTtlMillis", DEFAULT_MAX_TTL_MILLIS));
+    }
+
+    /**
+     * @param finished the epilogue output of the job is there, then we only
+     * use a final status
+     * @return the cached status if it is still fresh, or null
+     */
+    public DrmJobStatus get(String drmJobId, boolean finished) {
+        if (!enabled) {
+            return null;
+        }
+        CachedStatus entry = entries.get(drmJobId);
+        if (entry != null && (entry.isFinal() || (!finished && System.currentTimeMillis() < entry.expiresAt))) {
+            hits.incrementAndGet();
+            return entry.status;
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * @return the last status of a job which is not finished, fresh or not,
+     * or null
+     */
+    public DrmJobStatus getLastKnown(String drmJobId) {
+        CachedStatus entry = entries.get(drmJobId);
+        return entry != null && !entry.isFinal() ? entry.status : null;
+    }
+
+    /**
+     * Keep the status we are about to report
+     *
+     * @param pbsState the pbs job_state the status is based on
+     * @param record the qstat record, or null
+     * @param epilogueRead the status is based on the epilogue output, it will
+     * not change any more
+     */
+    public void put(String drmJobId, String pbsState, DrmJobStatus status, QstatRecord record, boolean epilogueRead) {
+        DrmJobState state = status.getJobState();
+        long now = System.currentTimeMillis();
+        if (epilogueRead && (state == DrmJobState.DONE || state == DrmJobState.FAILED)) {
+            entries.put(drmJobId, new CachedStatus(status, pbsState, now, Long.MAX_VALUE));
+            return;
+        }
+        if (state != DrmJobState.QUEUED && state != DrmJobState.QUEUED_HELD
+                && state != DrmJobState.RUNNING && state != DrmJobState.SUSPENDED) {
+            // a failure we did not get from the epilogue output, check again next time
+            entries.remove(drmJobId);
+            return;
+        }
+
+        // keep the time the job entered this state
+        CachedStatus previous = entries.get(drmJobId);
+        long since = previous != null && pbsState.equals(previous.pbsState) ? previous.since : now;
+        entries.put(drmJobId, new CachedStatus(status, pbsState, since, now + ttlMillis(pbsState, now - since, record)));
+    }
+
+    /**
+     * @param age how long the job has been in this state, in ms
+     */
+    long ttlMillis(String pbsState, long age, QstatRecord record) {
+        long ttl;
+        if ("Q".equalsIgnoreCase(pbsState) || "H".equalsIgnoreCase(pbsState) || "S".equalsIgnoreCase(pbsState)) {
+            ttl = age / 10;
+        } else if ("R".equalsIgnoreCase(pbsState)) {
+            Long requested = record != null ? record.getRequestedWalltime() : null;
+            Long used = record != null ? record.getWalltime() : null;
+            if (used != null && used >= 0) {
+                // the walltime used is the time in R, also for the jobs
+                // which started before we first saw them
+                ttl = used * 1000L / 10;
+                if (requested != null && requested > 0) {
+                    ttl = Math.min(ttl, Math.max(0L, requested - used) * 1000L / 10);
+                }
+            } else {
+                ttl = age / 10;
+            }
+        } else {
+            ttl = minTtlMillis;
+        }
+        return Math.max(minTtlMillis, Math.min(maxTtlMillis, ttl));
+    }
+
+    public void remove(String drmJobId) {
+        entries.remove(drmJobId);
+    }
+
+    /**
+     * Drop the statuses of the given jobs of a cluster
+     *
+     * @param shortIds the short pbs ids, see QstatSnapshot.shortId
+     */
+    public void removeJobs(String clusterName, Set<String> shortIds) {
+        synchronized (entries) {
+            Iterator<String> it = entries.keySet().iterator();
+            while (it.hasNext()) {
+                PbsJobId jobId = PbsJobId.parse(it.next());
+                if (jobId.getClusterName().equals(clusterName) && shortIds.contains(jobId.getShortId())) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public double getHitRate() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0.0 : h / (double) total;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("job status cache: %d jobs, %.1f%% hits", size(), getHitRate() * 100.0);
+    }
+
+    private static class CachedStatus {
+        private final DrmJobStatus status;
+        private final String pbsState;
+        private final long since;
+        private final long expiresAt;
+
+        CachedStatus(DrmJobStatus status, String pbsState, long since, long expiresAt) {
+            this.status = status;
+            this.pbsState = pbsState;
+            this.since = since;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean isFinal() {
+            return expiresAt == Long.MAX_VALUE;
+        }
+    }
+}
@@ -0,0 +1,362 @@
+package edu.iu.gp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.log4j.Logger;
+
+/**
+ * Where the time of a job goes, from the GenePattern server calling
+ * startJob to the GenePattern server getting the final status.
+ *
+ * The runner records an Event with a time stamp at every step of a job.
+ * The events go into a ring buffer of fixed size records in a memory mapped
+ * file, so recording one is a few stores into memory, the oldest events are
+ * overwritten when the ring is full, and the events survive a restart of the
+ * server. Every record is 128 bytes:
+ * <pre>
+ *     0   long  sequence number + 1, written last, 0 for an empty slot
+ *     8   long  time stamp, ms since the epoch
+ *     16  int   GenePattern job number
+ *     20  byte  event
+ *     21  byte  length of the queue name
+ *     22  byte  length of the module lsid
+ *     24  the queue name, at most 24 bytes
+ *     48  the module lsid, at most 80 bytes
+ * </pre>
+ *
+ * getLatencies() reads the ring and gives the time of a Phase of the jobs,
+ * grouped by queue or by module, in LatencyHistograms which hold
+ * milliseconds. A phase is measured from the first time its first event was
+ * recorded for a job to the first time its second event was recorded.
+ *
+ * Configured with the system properties pbs.timeline.file (no timeline if
+ * it is not set) and pbs.timeline.capacity, the number of records in the
+ * ring (default 65536, an 8 MB file).
+ *
+ * @author lewu@iu.edu
+ */
+public class JobTimeline {
+
+    private static final Logger log = Logger.getLogger(JobTimeline.class);
+
+    public static final int DEFAULT_CAPACITY = 65536;
+
+    private static final int MAGIC = 0x47504a54;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    static final int RECORD_SIZE = 128;
+    private static final int QUEUE_OFFSET = 24;
+    private static final int QUEUE_SIZE = 24;
+    private static final int MODULE_OFFSET = 48;
+    private static final int MODULE_SIZE = 80;
+
+    /**
+     * We remember the events a job already has, so a job which is checked
+     * every minute while it is queued gets one FIRST_QUEUED record
+     */
+    private static final int MAX_TRACKED_JOBS = 10000;
+
+    public enum Event {
+        /** the GenePattern server called startJob */
+        SUBMIT,
+        /** qsub returned the pbs job id */
+        QSUB_RETURNED,
+        /** we saw the job queued for the first time */
+        FIRST_QUEUED,
+        /** the job started, the start_time of the job */
+        STARTED,
+        /** the epilogue output was written, its modification time */
+        EPILOGUE,
+        /** we returned the final status, DONE or FAILED, to the GenePattern server */
+        DONE
+    }
+
+    public enum Phase {
+        /** from startJob to the pbs job id: our pipeline and qsub */
+        SCHEDULING_LAG(Event.SUBMIT, Event.QSUB_RETURNED),
+        /** from the pbs job id to the start of the job */
+        QUEUE_WAIT(Event.QSUB_RETURNED, Event.STARTED),
+        /** the job ran */
+        RUN_TIME(Event.STARTED, Event.EPILOGUE),
+        /** from the epilogue output to the GenePattern server knowing the job is done */
+        DETECTION_LAG(Event.EPILOGUE, Event.DONE),
+        /** from startJob to the final status */
+        TOTAL(Event.SUBMIT, Event.DONE);
+
+        private final Event from;
+        private final Event to;
+
+        Phase(Event from, Event to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        public Event getFrom() {
+            return from;
+        }
+
+        public Event getTo() {
+            return to;
+        }
+    }
+
+    public enum GroupBy {
+        ALL, QUEUE, MODULE
+    }
+
+    private final File file;
+    private final int capacity;
+    private final MappedByteBuffer buffer;
+    private final AtomicLong sequence;
+
+    private final Map<Integer, Integer> recorded = Collections.synchronizedMap(
+            new LinkedHashMap<Integer, Integer>(256, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Integer, Integer> eldest) {
+                    return size() > MAX_TRACKED_JOBS;
+                }
+            });
+
+    /**
+     * Open the ring buffer file, the file is created, or cleared if it was
+     * written with another layout or capacity
+     */
+    public JobTimeline(File file, int capacity) throws IOException {
+        this.file = file;
+        this.capacity = capacity;
+        long size = HEADER_SIZE + (long) capacity * RECORD_SIZE;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            boolean reuse = raf.length() == size;
+            raf.setLength(size);
+            // the mapping stays valid after the channel is closed
+            this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+        if (buffer.getInt(0) == MAGIC && buffer.getInt(4) == VERSION && buffer.getInt(8) == RECORD_SIZE
+                && buffer.getInt(12) == capacity) {
+            // go on after the last record of the previous run
+            long last = 0L;
+            for (int slot = 0; slot < capacity; slot++) {
+                last = Math.max(last, buffer.getLong(offset(slot)));
+            }
+            this.sequence = new AtomicLong(last);
+        } else {
+            for (long i = 0; i < size; i += 8) {
+                buffer.putLong((int) i, 0L);
+            }
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+            buffer.putInt(8, RECORD_SIZE);
+            buffer.putInt(12, capacity);
+            this.sequence = new AtomicLong(0L);
+        }
+    }
+
+    /**
+     * @return the timeline configured with the system property
+     * pbs.timeline.file, or null if it is not set
+     */
+    public static JobTimeline fromSystemProperties() {
+        String path = System.getProperty("pbs.timeline.file");
+        if (path == null || path.trim().isEmpty()) {
+            return null;
+        }
+        int capacity = Integer.getInteger("pbs.timeline.capacity", DEFAULT_CAPACITY);
+        try {
+            JobTimeline timeline = new JobTimeline(new File(path.trim()), capacity);
+            log.info("recording the job timelines in " + path.trim() + ", " + capacity + " events");
+            return timeline;
+        } catch (IOException e) {
+            log.error("can not open the job timeline " + path + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    private static int offset(int slot) {
+        return HEADER_SIZE + slot * RECORD_SIZE;
+    }
+
+    /**
+     * Record the event now
+     */
+    public void record(Integer gpJobNo, Event event, String queue, String module) {
+        record(gpJobNo, event, System.currentTimeMillis(), queue, module);
+    }
+
+    /**
+     * Record the event, if the job does not have it already
+     *
+     * @param gpJobNo the job, events of a job without a number are dropped
+     * @param queue the queue of the job, or null if we don't know it
+     * @param module the lsid of the module, or null if we don't know it
+     */
+    public void record(Integer gpJobNo, Event event, long timeMillis, String queue, String module) {
+        if (gpJobNo == null || timeMillis <= 0) {
+            return;
+        }
+        int bit = 1 << event.ordinal();
+        synchronized (recorded) {
+            Integer events = recorded.get(gpJobNo);
+            int mask = events != null ? events : 0;
+            if ((mask & bit) != 0) {
+                return;
+            }
+            recorded.put(gpJobNo, mask | bit);
+        }
+
+        long seq = sequence.getAndIncrement();
+        int base = offset((int) (seq % capacity));
+        // the slot is marked empty while we write it
+        buffer.putLong(base, 0L);
+        buffer.putLong(base + 8, timeMillis);
+        buffer.putInt(base + 16, gpJobNo);
+        buffer.put(base + 20, (byte) event.ordinal());
+        buffer.put(base + 21, putString(base + QUEUE_OFFSET, QUEUE_SIZE, queue));
+        buffer.put(base + 22, putString(base + MODULE_OFFSET, MODULE_SIZE, module));
+        buffer.putLong(base, seq + 1);
+    }
+
+    private byte putString(int offset, int max, String value) {
+        if (value == null || value.isEmpty() || "N/A".equals(value)) {
+            return 0;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(bytes.length, max);
+        for (int i = 0; i < length; i++) {
+            buffer.put(offset + i, bytes[i]);
+        }
+        return (byte) length;
+    }
+
+    /**
+     * Forget which events the job has, after its final status was reported
+     */
+    public void forget(Integer gpJobNo) {
+        if (gpJobNo != null) {
+            recorded.remove(gpJobNo);
+        }
+    }
+
+    /**
+     * Read the ring: the first time of every event, the queue and the
+     * module of every job
+     */
+    Map<Integer, JobEvents> readJobs() {
+        ByteBuffer view = buffer.duplicate();
+        Map<Integer, JobEvents> jobs = new HashMap<Integer, JobEvents>();
+        byte[] text = new byte[MODULE_SIZE];
+        for (int slot = 0; slot < capacity; slot++) {
+            int base = offset(slot);
+            long seq = view.getLong(base);
+            if (seq == 0L) {
+                continue;
+            }
+            long time = view.getLong(base + 8);
+            int gpJobNo = view.getInt(base + 16);
+            int event = view.get(base + 20);
+            int queueLength = view.get(base + 21);
+            int moduleLength = view.get(base + 22);
+            if (event < 0 || event >= Event.values().length || view.getLong(base) != seq) {
+                // overwritten while we were reading it
+                continue;
+            }
+            JobEvents job = jobs.get(gpJobNo);
+            if (job == null) {
+                job = new JobEvents();
+                jobs.put(gpJobNo, job);
+            }
+            if (job.times[event] == 0L || time < job.times[event]) {
+                job.times[event] = time;
+            }
+            if (job.queue == null && queueLength > 0) {
+                job.queue = readString(view, base + QUEUE_OFFSET, Math.min(queueLength, QUEUE_SIZE), text);
+            }
+            if (job.module == null && moduleLength > 0) {
+                job.module = readString(view, base + MODULE_OFFSET, Math.min(moduleLength, MODULE_SIZE), text);
+            }
+        }
+        return jobs;
+    }
+
+    private static String readString(ByteBuffer view, int offset, int length, byte[] text) {
+        for (int i = 0; i < length; i++) {
+            text[i] = view.get(offset + i);
+        }
+        return new String(text, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the time of the phase, in ms, of the jobs in the ring which
+     * have both of its events, by queue, by module or all of them under "all"
+     */
+    public Map<String, LatencyHistogram> getLatencies(Phase phase, GroupBy groupBy) {
+        Map<String, LatencyHistogram> latencies = new TreeMap<String, LatencyHistogram>();
+        for (JobEvents job : readJobs().values()) {
+            long from = job.times[phase.from.ordinal()];
+            long to = job.times[phase.to.ordinal()];
+            if (from == 0L || to == 0L) {
+                continue;
+            }
+            String key;
+            if (groupBy == GroupBy.QUEUE) {
+                key = job.queue != null ? job.queue : "unknown";
+            } else if (groupBy == GroupBy.MODULE) {
+                key = job.module != null ? job.module : "unknown";
+            } else {
+                key = "all";
+            }
+            LatencyHistogram histogram = latencies.get(key);
+            if (histogram == null) {
+                histogram = new LatencyHistogram();
+                latencies.put(key, histogram);
+            }
+            // the clocks of the cluster and of the server may be a little off
+            histogram.record(Math.max(0L, to - from));
+        }
+        return latencies;
+    }
+
+    /**
+     * @return the p50, p90 and p99 of every phase, in seconds, by queue
+     * and by module
+     */
+    public String report() {
+        StringBuilder out = new StringBuilder();
+        for (Phase phase : Phase.values()) {
+            for (GroupBy groupBy : GroupBy.values()) {
+                for (Map.Entry<String, LatencyHistogram> entry : getLatencies(phase, groupBy).entrySet()) {
+                    LatencyHistogram h = entry.getValue();
+                    out.append(String.format("%s %s=%s: %d jobs, p50 %.1f s, p90 %.1f s, p99 %.1f s, max %.1f s%n",
+                            phase.name().toLowerCase(), groupBy.name().toLowerCase(), entry.getKey(), h.getCount(),
+                            h.getPercentile(50) / 1000.0, h.getPercentile(90) / 1000.0,
+                            h.getPercentile(99) / 1000.0, h.getMax() / 1000.0));
+                }
+            }
+        }
+        return out.toString();
+    }
+
+    static class JobEvents {
+        final long[] times = new long[Event.values().length];
+        String queue;
+        String module;
+    }
+}
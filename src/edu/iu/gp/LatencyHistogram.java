@@ -0,0 +1,113 @@
+package edu.iu.gp;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A latency histogram with log-linear buckets, the way HdrHistogram lays
+ * them out: the values below 32 us have a bucket each, above that every
+ * power of two is cut into 16 buckets, so a percentile is never off by more
+ * than 1/16 (6.25%) of the value. Values up to 2^36 us (about 19 hours) fit
+ * in 560 buckets, larger ones are counted in the last bucket.
+ *
+ * Recording is lock free and never allocates.
+ *
+ * @author lewu@iu.edu
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKETS = 32;
+    private static final int HALF = SUB_BUCKETS / 2;
+    private static final int MAGNITUDES = 33;
+    private static final int BUCKETS = SUB_BUCKETS + MAGNITUDES * HALF;
+    private static final long MAX_VALUE = (1L << 36) - 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * @param micros the latency in microseconds
+     */
+    public void record(long micros) {
+        long value = Math.max(0L, Math.min(MAX_VALUE, micros));
+        counts.incrementAndGet(bucketOf(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        long m;
+        while (value > (m = max.get()) && !max.compareAndSet(m, value)) {
+            // another thread raised the max, try again
+        }
+    }
+
+    public void recordNanos(long nanos) {
+        record(nanos / 1000L);
+    }
+
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        // keep the 5 highest bits of the value, the top one is always set
+        int shift = 63 - Long.numberOfLeadingZeros(value) - 4;
+        return SUB_BUCKETS + (shift - 1) * HALF + (int) ((value >> shift) - HALF);
+    }
+
+    /**
+     * @return the largest value which falls in the bucket
+     */
+    static long highestValueOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = (bucket - SUB_BUCKETS) / HALF + 1;
+        long sub = (bucket - SUB_BUCKETS) % HALF + HALF;
+        return ((sub + 1) << shift) - 1;
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return the mean in microseconds
+     */
+    public double getMean() {
+        long n = count.get();
+        return n == 0 ? 0.0 : sum.get() / (double) n;
+    }
+
+    /**
+     * @return the largest value in microseconds
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @param percentile e.g. 99.9
+     * @return the value in microseconds at or below which the given percent
+     * of the values are, within the bucket precision
+     */
+    public long getPercentile(double percentile) {
+        long total = 0L;
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0L;
+        }
+        long target = Math.max(1L, (long) Math.ceil(total * Math.min(100.0, percentile) / 100.0));
+        long seen = 0L;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= target) {
+                return Math.min(highestValueOf(i), max.get());
+            }
+        }
+        return max.get();
+    }
+}
@@ -1,6 +1,5 @@
 package edu.iu.gp;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileNotFoundException;
@@ -8,7 +7,13 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.util.Scanner;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.StringTokenizer;
 import org.apache.log4j.Logger;
 import org.genepattern.drm.DrmJobRecord;
 
@@ -19,169 +24,208 @@ import org.genepattern.drm.DrmJobRecord;
 public class PBS {
 
     private static final Logger log = Logger.getLogger(PBS.class); 
+
+    /**
+     * The most ids we pass to one qdel, and the most characters of ids
+     */
+    static final int QDEL_MAX_IDS = 200;
+    static final int QDEL_MAX_CHARS = 64 * 1024;
     
     public static String qsub(String input) throws IOException, InterruptedException, PbsException {
+        return qsub(input, null);
+    }
+
+    /**
+     * @param clusterName the pbs.host the job goes to, the command waits for
+     * the throttle of this cluster, null or N/A to run it right away
+     */
+    public static String qsub(String input, String clusterName) throws IOException, InterruptedException, PbsException {
+        return qsub(input, null, clusterName);
+    }
+
+    /**
+     * @param script the job script, qsub reads it from its stdin, or null if
+     * the qsub command line names the script file
+     */
+    public static String qsub(String input, String script, String clusterName) throws IOException, InterruptedException, PbsException {
+
+        // split the command line on white spaces, the same way Runtime.exec(String) does
+        StringTokenizer st = new StringTokenizer(input);
+        String[] command = new String[st.countTokens()];
+        for (int i = 0; st.hasMoreTokens(); i++) {
+            command[i] = st.nextToken();
+        }
 
-        Process p = Runtime.getRuntime().exec(input);
+        return qsub(command, script, clusterName);
+    }
 
-        p.waitFor();
+    /**
+     * @param command the qsub argv, e.g. {"qsub"} when the job script with
+     * its #PBS directives is on the stdin
+     */
+    public static String qsub(String[] command, String script, String clusterName) throws IOException, InterruptedException, PbsException {
 
-        BufferedInputStream ef = new BufferedInputStream(p.getErrorStream());
+        SchedulerCommandExecutor.CommandResult result;
+        if (clusterName == null || "N/A".equals(clusterName)) {
+            result = SchedulerCommandExecutor.getInstance().execute(command,
+                    SchedulerCommandExecutor.getInstance().getDefaultTimeoutMillis(), null, script);
+        } else {
+            result = ClusterThrottle.forCluster(clusterName).executeWaiting(command, script);
+        }
 
-        if (ef.available() > 0) {
-            byte[] errdata = new byte[ef.available()];
-            ef.read(errdata, 0, ef.available());
-            String st = new String(errdata);
-            ef.close();
-            p.getOutputStream().close();
-            p.getInputStream().close();
-            throw new PbsException(st);
+        if (result.hasErrors()) {
+            throw new PbsException(result.getStderr());
         }
 
         //return new String(data);
-        BufferedInputStream b = new BufferedInputStream(p.getInputStream());
-        byte[] data = new byte[b.available()];
-        b.read(data);
-        p.getOutputStream().close();
-        p.getErrorStream().close();
-
-        b.close();
-        return new String(data).replaceAll("\n", "");
+        return result.getStdout().replaceAll("\n", "");
     }
 
     public static String qstat(DrmJobRecord drmJobRecord) throws IOException, InterruptedException, PbsException {
+        return qstatRecord(drmJobRecord).getJobState();
+    }
 
-        final String drmJobId = drmJobRecord.getExtJobId();
-
-        //String workDirPath = drmJobId.split("__")[0];
-        String workDirPath = drmJobRecord.getWorkingDir().toString();
-        //String gpId = drmJobId.split("__")[1];
-        String pbsId = drmJobId.split("__")[0];
-        String clusterName = drmJobId.split("__")[1];
-        String pbsJobId = pbsId + "@" + clusterName;
+    /**
+     * Get the status of the job with one qstat call (or from the cluster
+     * snapshot), all the fields the job runner needs are parsed in one pass.
+     */
+    public static QstatRecord qstatRecord(DrmJobRecord drmJobRecord) throws IOException, InterruptedException, PbsException {
+
+        final PbsJobId jobId = PbsJobId.of(drmJobRecord);
+        String pbsId = jobId.getPbsId();
+        String clusterName = jobId.getClusterName();
+        String pbsJobId = jobId.getQualifiedId();
+
+        // we first try the shared snapshot of this cluster, only when the job
+        // is not in the snapshot we run a qstat for this job
+        QstatRecord record = QstatSnapshot.forCluster(clusterName).getJobRecord(pbsId);
+        if (record != null) {
+            return record;
+        }
 
         //String pbsJobId = jobID + "@m1.mason.indiana.edu";
-        Process p = Runtime.getRuntime().exec("qstat -f " + pbsJobId);
-        p.waitFor();
-
-        BufferedInputStream errStream = new BufferedInputStream(p.getErrorStream());
-
-        if (errStream.available() > 0) {
-            byte[] errdata = new byte[errStream.available()];
-            errStream.read(errdata, 0, errStream.available());
-            p.getOutputStream().close();
-            p.getErrorStream().close();
-            errStream.close();
-
-            // If we got errors, such as "Unknown Job Id Error 206815.m1", while checking the job status,
-            // it is possible that this job has been finished long time ago and 
-            // its record has been removed from the pbs history.
-            // We will need to check whether the stderr, stdout, and epilogue.pbs have been write to
-            // job working directory.
-            File stderr = drmJobRecord.getStderrFile();
-            File epilogueOut = new File(new File(workDirPath,".pbs"), ".epilogue.pbs");
-            log.error(new String("we have error stream" + errdata));
-
-            if (epilogueOut.exists()) {
-                
-                log.error(new String("we have error stream and epilogue file exist"));
-                String epiData = (new Scanner(epilogueOut)).useDelimiter("\\z").next();
-                String exitCode = getKeyValue("Job_Exit_Code", epiData.split("\n"));
-                log.error(new String("we get the exitcode=" + exitCode));
-
-                // job finished successfully, we got exit_code = 0
-                if (exitCode.compareToIgnoreCase("0") == 0) {
-
-                    // PBS script finshed successfully, but we need to do one more check on
-                    // stderr file to see whether there are some error messages shown.
-                    // We use some pre-defined key words for checking the erros.
-                    //
-                    // If we have the stderr file
-                    if (stderr.exists()) {
-                        if (hasErrorsInStdout(stderr)) {
-                            return "F";
-                        } else {
-                            return "C";
-                        }
-                    } // stderr does not exist, it means everything looking good. 
-                    else {
-                        return "C";
+        SchedulerCommandExecutor.CommandResult result = ClusterThrottle.forCluster(clusterName).execute("qstat", "-f", pbsJobId);
+
+        if (result.hasErrors()) {
+            if (ClusterThrottle.isOverloadMessage(result.getStderr())) {
+                // the server did not answer, this says nothing about the job
+                throw new PbsException(result.getStderr().trim());
+            }
+            return finishedJobRecord(drmJobRecord, pbsId, result.getStderr());
+        }
+
+        String Result = result.getStdout();
+        //log.error(new String("we are good to get the job status, prepare parsing"));
+        QstatRecord parsed = QstatParser.parseSingle(Result);
+        if (parsed == null) {
+            // no job in the output, the job runner will get a null job_state
+            return QstatRecord.forState(pbsId, null);
+        }
+        return parsed;
+
+    }
+
+    /**
+     * If we got errors, such as "Unknown Job Id Error 206815.m1", while checking the job status,
+     * it is possible that this job has been finished long time ago and 
+     * its record has been removed from the pbs history.
+     * We will need to check whether the stderr, stdout, and epilogue.pbs have been write to
+     * job working directory.
+     *
+     * @param errdata the error message we got from the scheduler
+     * @return the C or F state of the finished job
+     * @throws PbsException with the errdata if there is no epilogue output
+     */
+    public static QstatRecord finishedJobRecord(DrmJobRecord drmJobRecord, String pbsId, String errdata) throws IOException, PbsException {
+
+        File stderr = drmJobRecord.getStderrFile();
+        log.error(new String("we have error stream" + errdata));
+
+        EpilogueRecord epilogue = EpilogueRecord.forJob(drmJobRecord.getWorkingDir());
+        if (epilogue != null) {
+            
+            log.error(new String("we have error stream and epilogue file exist"));
+            Integer exitCode = epilogue.getExitCode();
+            log.error(new String("we get the exitcode=" + exitCode));
+
+            // job finished successfully, we got exit_code = 0
+            if (epilogue.isSuccess()) {
+
+                // PBS script finshed successfully, but we need to do one more check on
+                // stderr file to see whether there are some error messages shown.
+                // We use some pre-defined key words for checking the erros.
+                //
+                // If we have the stderr file
+                if (stderr.exists()) {
+                    if (hasErrorsInStdout(stderr)) {
+                        return QstatRecord.forState(pbsId, "F");
+                    } else {
+                        return QstatRecord.forState(pbsId, "C");
                     }
-                } // we got non-zero job exit code or we got null 
+                } // stderr does not exist, it means everything looking good. 
                 else {
-                    return "F";
+                    return QstatRecord.forState(pbsId, "C");
                 }
+            } // we got non-zero job exit code or we got null 
+            else {
+                return QstatRecord.forState(pbsId, "F");
             }
-
-            // There are some problems for getting this job's status
-            // and we can not find stdout and epiloigue files
-            log.error(new String("we got error whjle checking job status and can not find epilogue output file"));
-            throw new PbsException((new String(errdata)));
         }
 
-        BufferedInputStream ef = new BufferedInputStream(p.getInputStream());
-        byte[] data = new byte[ef.available()];
-        ef.read(data, 0, ef.available());
-        ef.close();
-        p.getOutputStream().close();
-        p.getErrorStream().close();
-        String Result = new String(data);
-        //log.error(new String("we are good to get the job status, prepare parsing"));
-        return getKeyValue("job_state", Result.split("\n"));
-
+        // There are some problems for getting this job's status
+        // and we can not find stdout and epiloigue files
+        log.error(new String("we got error whjle checking job status and can not find epilogue output file"));
+        throw new PbsException(errdata);
     }
 
     public static String showstart(DrmJobRecord drmJobRecord) throws IOException, InterruptedException, PbsException {
+        return showstart(PbsJobId.of(drmJobRecord));
+    }
 
-        final String drmJobId = drmJobRecord.getExtJobId();
+    public static String showstart(PbsJobId jobId) throws IOException, InterruptedException, PbsException {
 
-        String pbsId = drmJobId.split("__")[0];
-        String clusterName = drmJobId.split("__")[1];
+        String pbsId = jobId.getPbsId();
+        String clusterName = jobId.getClusterName();
 
         // we don't need the clusterName to use on mason
         // But it may not be the case for other system
         //String pbsJobId = jobID + "@m1.mason.indiana.edu";
        
-        String startTime = PBS.showstart(pbsId);
+        // the estimates of all the queued jobs of the cluster are fetched
+        // together and kept for a while
+        String startTime = StartEstimateSnapshot.forCluster(clusterName).getEstimate(pbsId);
         log.debug("check start time = " + startTime);
         return startTime;
 
     }
     
     public static String showstart(String pbsId) throws IOException, InterruptedException, PbsException {
+        return showstart(pbsId, null);
+    }
+
+    public static String showstart(String pbsId, String clusterName) throws IOException, InterruptedException, PbsException {
 
         String startTime = "cannot determine start time for job";
        
         String pbsJobId = pbsId;
         
-        Process p = Runtime.getRuntime().exec(new String[]{"bash","-c","showstart " + pbsJobId});
-        p.waitFor();
+        SchedulerCommandExecutor.CommandResult result = clusterName == null
+                ? SchedulerCommandExecutor.getInstance().execute("showstart", pbsJobId)
+                : ClusterThrottle.forCluster(clusterName).execute("showstart", pbsJobId);
 
-        BufferedInputStream errStream = new BufferedInputStream(p.getErrorStream());
-
-        if (errStream.available() > 0) {
-            byte[] errdata = new byte[errStream.available()];
-            errStream.read(errdata, 0, errStream.available());
-            p.getOutputStream().close();
-            p.getErrorStream().close();
-            errStream.close();
+        if (result.hasErrors()) {
 
             // If we got errors, means we can get the estimated starting time.
             // we will try next time but log the info and return the message 
             // as "can not get the starting time"
+            log.debug("showstart " + pbsJobId + ": " + result.getStderr().trim());
         } else {
 
-            BufferedInputStream ef = new BufferedInputStream(p.getInputStream());
-            byte[] data = new byte[ef.available()];
-            ef.read(data, 0, ef.available());
-            ef.close();
-            p.getOutputStream().close();
-            p.getErrorStream().close();
-            String[] result = (new String(data)).split("\n");
-
-            for (int i = 0; i < result.length; i++) {
-                if (result[i].contains("based start in")) {
-                    startTime = result[i];
+            String[] lines = result.getStdout().split("\n");
+
+            for (int i = 0; i < lines.length; i++) {
+                if (lines[i].contains("based start in")) {
+                    startTime = lines[i];
                 }
             }
 
@@ -192,89 +236,72 @@ public class PBS {
     }
 
     public static String PbsResUsage(DrmJobRecord drmJobRecord, String resKey) throws IOException, InterruptedException, PbsException {
+        return PbsResUsage(PbsJobId.of(drmJobRecord), resKey);
+    }
 
-        final String drmJobId = drmJobRecord.getExtJobId();
+    public static String PbsResUsage(PbsJobId jobId, String resKey) throws IOException, InterruptedException, PbsException {
 
-        //String workDirPath = drmJobId.split("__")[0];
-        //String gpId = drmJobId.split("__")[1];
-        String pbsId = drmJobId.split("__")[0];
-        String clusterName = drmJobId.split("__")[1];
-        String pbsJobId = pbsId + "@" + clusterName;
+        String pbsId = jobId.getPbsId();
+        String clusterName = jobId.getClusterName();
+        String pbsJobId = jobId.getQualifiedId();
 
-        //String pbsJobId = jobID + "@m1.mason.indiana.edu";
-        Process p = Runtime.getRuntime().exec("qstat -f " + pbsJobId);
-        p.waitFor();
+        // use the shared snapshot of this cluster while it is still fresh
+        QstatRecord record = QstatSnapshot.forCluster(clusterName).getJobRecord(pbsId);
+        if (record != null) {
+            return getResValue(record, resKey);
+        }
 
-        BufferedInputStream errStream = new BufferedInputStream(p.getErrorStream());
+        //String pbsJobId = jobID + "@m1.mason.indiana.edu";
+        SchedulerCommandExecutor.CommandResult result = ClusterThrottle.forCluster(clusterName).execute("qstat", "-f", pbsJobId);
 
         // If we got errors while pulling the detail job information
         // we just return null
-        if (errStream.available() > 0) {
-            byte[] errdata = new byte[errStream.available()];
-            errStream.read(errdata, 0, errStream.available());
-            p.getOutputStream().close();
-            p.getErrorStream().close();
-            errStream.close();
+        if (result.hasErrors()) {
 
             return null;
 
         }
         // we successfully get the detail job real time information 
         else {
-            BufferedInputStream ef = new BufferedInputStream(p.getInputStream());
-            byte[] data = new byte[ef.available()];
-            ef.read(data, 0, ef.available());
-            ef.close();
-            p.getOutputStream().close();
-            p.getErrorStream().close();
-            String Result = new String(data);
+            String Result = result.getStdout();
             
             // we need to parse the job real time information in order to get 
             // the value we want to return 
-            String value = parseResKeyValue(resKey, Result.split("\n"));
+            QstatRecord parsed = QstatParser.parseSingle(Result);
             
             //log.debug("PbsResUsage: " + resKey + " = " + value);
-            
-            // somehow we can not parse the detail real time information 
-            // we just simply return null 
-            if (value == null || value.isEmpty()){
-                return null;
-            }
-
-            else if (resKey.equals("cput") || resKey.equals("walltime")) {
-                String[] info = value.split(":", 3);
-                int tSec = Integer.parseInt(info[2]);
-                int tMin = Integer.parseInt(info[1]);
-                int tHur = Integer.parseInt(info[0]);
-                Long rt = tHur * 60 * 60 + tMin * 60 + tSec * 1L;
-                return rt.toString();
-            } else if (resKey.equals("mem") || resKey.equals("vmem")) {
-                String mem = value.substring(0, value.length() - 2);
-                Long memValue = Long.parseLong(mem) * 1024L;
-                return memValue.toString();
-
-            } else if (resKey.equals("start_time") || resKey.equals("qtime")){
-                //slog.error(new String("parse time: "+value));
-                //String[] info = value.split(" ", 5);
-                //String year = info[4];    
-                //String month = info[1];
-                //String date = info[2];
-                //String hrs = info[3].split(":",3)[0];
-                //String min = info[3].split(":",3)[1];
-                //String sec = info[3].split(":",3)[2];
-                return value;
-            }
-            
-             else {
-                return value;
-            }
 
+            return parsed == null ? null : getResValue(parsed, resKey);
         }
 
     }
 
-    
-    
+    /**
+     * Get the value in the unit the job runner wants, cput and walltime in
+     * seconds, mem and vmem in bytes, start_time and qtime as printed by qstat
+     *
+     * @return the value or null if we don't have it
+     */
+    private static String getResValue(QstatRecord record, String resKey) {
+        Long value;
+        if (resKey.equals("start_time")) {
+            return record.getStartTime();
+        } else if (resKey.equals("qtime")) {
+            return record.getQtime();
+        } else if (resKey.equals("cput")) {
+            value = record.getCpuTime();
+        } else if (resKey.equals("walltime")) {
+            value = record.getWalltime();
+        } else if (resKey.equals("mem")) {
+            value = record.getMem();
+        } else if (resKey.equals("vmem")) {
+            value = record.getVmem();
+        } else {
+            return null;
+        }
+        return value == null ? null : value.toString();
+    }
+
     public static String getKeyValue(String key, String[] info) {
 
         String[] line;
@@ -370,46 +397,144 @@ public class PBS {
 
     }
 
-    public static boolean qdel(String JobID) throws IOException, InterruptedException, PbsException {
+    public static boolean qdel(PbsJobId jobId) throws IOException, InterruptedException, PbsException {
+        return qdel(jobId.getQualifiedId());
+    }
 
-        Process p = Runtime.getRuntime().exec("qdel " + JobID);
-        p.waitFor();
+    public static boolean qdel(String JobID) throws IOException, InterruptedException, PbsException {
 
-        BufferedInputStream errStream = new BufferedInputStream(p.getErrorStream());
+        // JobID looks like 265066.m1.mason@m1.mason.indiana.edu
+        int at = JobID.indexOf('@');
+        SchedulerCommandExecutor.CommandResult result = at < 0
+                ? SchedulerCommandExecutor.getInstance().execute("qdel", JobID)
+                : ClusterThrottle.forCluster(JobID.substring(at + 1)).executeWaiting("qdel", JobID);
 
         // if we receive some error message while deleting the job, we
         // will need to report the message back to the job runner
-        if (errStream.available() > 0) {
-            byte[] errdata = new byte[errStream.available()];
-            errStream.read(errdata, 0, errStream.available());
-            p.getOutputStream().close();
-            p.getErrorStream().close();
-            errStream.close();
-            throw new PbsException((new String(errdata)));
+        if (result.hasErrors()) {
+            throw new PbsException(result.getStderr());
         }
 
         return true;
     }
 
-    public static boolean hasErrorsInStdout(File stderr) throws IOException {
-
-        String[] errorKeyWords = {"error", "errors", "abort", "aborted", "core dump", "exception"};
-
-        Scanner scanner = new Scanner(stderr);
-
-        //now read the stdout file line by line...
-        while (scanner.hasNextLine()) {
-            String line = scanner.nextLine();
+    /**
+     * Cancel many jobs with as few qdel calls as we can: one qdel per
+     * cluster with at most QDEL_MAX_IDS ids and QDEL_MAX_CHARS characters of
+     * ids, so the command line stays well below the argv limit.
+     *
+     * @param pbsJobIds the job ids with the cluster name, e.g.
+     * 265066.m1.mason@m1.mason.indiana.edu
+     * @return the error message of every job qdel could not cancel, keyed by
+     * the given id, the map is empty if all the jobs were cancelled
+     */
+    public static Map<String, String> qdelAll(Collection<String> pbsJobIds) throws IOException, InterruptedException {
+
+        // group the ids by cluster
+        Map<String, List<String>> byCluster = new LinkedHashMap<String, List<String>>();
+        for (String pbsJobId : pbsJobIds) {
+            int at = pbsJobId.indexOf('@');
+            String clusterName = at < 0 ? "" : pbsJobId.substring(at + 1);
+            List<String> ids = byCluster.get(clusterName);
+            if (ids == null) {
+                ids = new ArrayList<String>();
+                byCluster.put(clusterName, ids);
+            }
+            ids.add(pbsJobId);
+        }
 
-            for (String errorKeyWord : errorKeyWords) {
+        Map<String, String> errors = new LinkedHashMap<String, String>();
+        for (Map.Entry<String, List<String>> cluster : byCluster.entrySet()) {
+            List<String> ids = cluster.getValue();
+            int from = 0;
+            while (from < ids.size()) {
+                int to = from;
+                int chars = 0;
+                while (to < ids.size() && to - from < QDEL_MAX_IDS && (to == from || chars + ids.get(to).length() < QDEL_MAX_CHARS)) {
+                    chars += ids.get(to).length() + 1;
+                    to++;
+                }
+                List<String> chunk = ids.subList(from, to);
+                String[] command = new String[chunk.size() + 1];
+                command[0] = "qdel";
+                for (int i = 0; i < chunk.size(); i++) {
+                    command[i + 1] = chunk.get(i);
+                }
+                try {
+                    SchedulerCommandExecutor.CommandResult result = cluster.getKey().isEmpty()
+                            ? SchedulerCommandExecutor.getInstance().execute(command)
+                            : ClusterThrottle.forCluster(cluster.getKey()).executeWaiting(command);
+                    if (result.hasErrors()) {
+                        parseQdelErrors(result.getStderr(), chunk, errors);
+                    }
+                } catch (PbsException e) {
+                    // timed out, or the server is overloaded
+                    for (String id : chunk) {
+                        errors.put(id, e.getMessage());
+                    }
+                }
+                from = to;
+            }
+        }
+        return errors;
+    }
 
-                // If we find an error keyword, we will return true
-                if (org.apache.commons.lang.StringUtils.containsIgnoreCase(line, errorKeyWord)) {
-                    return true;
+    /**
+     * qdel prints one line for every job it could not cancel, e.g.
+     * "qdel: Unknown Job Id 265066.m1.mason", we find the job by its short
+     * id. When no line names a job (e.g. qdel can not reach the server), all
+     * the jobs of the call get the whole stderr.
+     */
+    static void parseQdelErrors(String stderr, List<String> ids, Map<String, String> errors) {
+        Map<String, String> byShortId = new HashMap<String, String>();
+        for (String id : ids) {
+            byShortId.put(qdelKey(id), id);
+        }
+        boolean attributed = false;
+        for (String line : stderr.split("\n")) {
+            line = line.trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+            for (String token : line.split("[\\s=,;]+")) {
+                String id = byShortId.get(qdelKey(token));
+                if (id != null) {
+                    errors.put(id, line);
+                    attributed = true;
+                    break;
                 }
             }
         }
-        return false;
+        if (!attributed) {
+            for (String id : ids) {
+                errors.put(id, stderr.trim());
+            }
+        }
+    }
+
+    /**
+     * The part of a job id before the first '.' or '@', e.g. 265066 or 123[4]
+     */
+    private static String qdelKey(String pbsJobId) {
+        int end = pbsJobId.length();
+        int dot = pbsJobId.indexOf('.');
+        if (dot > 0) {
+            end = dot;
+        }
+        int at = pbsJobId.indexOf('@');
+        if (at > 0 && at < end) {
+            end = at;
+        }
+        return pbsJobId.substring(0, end);
+    }
+
+    /**
+     * Look for the error keywords in the stderr file of a finished job, see
+     * StderrScanner for the keywords and how to configure them. The part of
+     * the file we already scanned while the job was running is not read again.
+     */
+    public static boolean hasErrorsInStdout(File stderr) throws IOException {
+        return StderrScanner.getDefault().finish(stderr) != null;
     }
 
 }
@@ -0,0 +1,159 @@
+package edu.iu.gp;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The #PBS directives at the top of a job script.
+ *
+ * We used to put the options on a qsub command line string which was split
+ * on white spaces, that broke on the working directories with spaces and
+ * built a new command line for every job. Now the options are #PBS lines
+ * of the job script and the qsub argv is fixed. The queue and resource
+ * lines are the same for all the jobs of a profile (queue, host, nodes,
+ * ppn, vmem, mem and walltime, see PbsJob.getArrayKey()), so they are built
+ * once per profile and kept in a small LRU map, the job adds its name,
+ * epilogue, dependencies and paths.
+ *
+ * @author lewu@iu.edu
+ */
+public final class PbsDirectives {
+
+    private static final int MAX_CACHED_PROFILES = 256;
+
+    private static final Map<String, String> profiles = Collections.synchronizedMap(
+            new LinkedHashMap<String, String>(64, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                    return size() > MAX_CACHED_PROFILES;
+                }
+            });
+
+    private PbsDirectives() {
+    }
+
+    /**
+     * @return the directives of the job, every line ends with a new line
+     */
+    public static String forJob(PbsJob job) {
+        String profile = profile(job);
+        StringBuilder out = new StringBuilder(profile.length() + 512);
+        directive(out, "-N", job.getName());
+        out.append(profile);
+        // We need to put a epilogue script to print out the exit code and other
+        // information
+        directive(out, "-l", "epilogue=" + job.getEpilogueFile());
+        depend(out, "afterok", job.getAfterOK());
+        depend(out, "afterany", job.getAfterany());
+        if (!"N/A".equals(job.getOutputPath())) {
+            directive(out, "-o", job.getOutputPath());
+        }
+        if (!"N/A".equals(job.getErrrorPath())) {
+            directive(out, "-e", job.getErrrorPath());
+        }
+        if (!"N/A".equals(job.getOutputDir())) {
+            directive(out, "-d", job.getOutputDir());
+            // the shared epilogue script writes its output there, see
+            // CommandTemplate.sharedEpilogueFile
+            directive(out, "-v", "GP_WORKDIR=" + job.getOutputDir());
+        }
+        return out.toString();
+    }
+
+    /**
+     * @return the directives of a job array, with the queue and resources of
+     * its first job, the array epilogue must be written first
+     */
+    public static String forArray(JobArray array) {
+        PbsJob first = array.getJobs().get(0);
+        StringBuilder out = new StringBuilder(512);
+        directive(out, "-N", array.getName());
+        directive(out, "-t", "0-" + (array.size() - 1));
+        out.append(profile(first));
+        directive(out, "-l", "epilogue=" + array.getEpilogueFile());
+        // Torque adds the array index to these names
+        directive(out, "-o", new File(array.getScriptDir(), "array.out").getAbsolutePath());
+        directive(out, "-e", new File(array.getScriptDir(), "array.err").getAbsolutePath());
+        directive(out, "-d", first.getOutputDir());
+        return out.toString();
+    }
+
+    /**
+     * @return the queue and resource directives of the profile of the job
+     */
+    static String profile(PbsJob job) {
+        String key = job.getArrayKey();
+        String block = profiles.get(key);
+        if (block == null) {
+            block = buildProfile(job);
+            profiles.put(key, block);
+        }
+        return block;
+    }
+
+    /**
+     * The -q option, with the pbs.host if there is one, and the nodes, vmem,
+     * mem and walltime requests
+     */
+    private static String buildProfile(PbsJob job) {
+        StringBuilder out = new StringBuilder(256);
+        boolean queue = !"N/A".equals(job.getQueue());
+        boolean host = !"N/A".equals(job.getHostName());
+        if (queue || host) {
+            directive(out, "-q", (queue ? job.getQueue() : "") + (host ? "@" + job.getHostName() : ""));
+        }
+        if (!"N/A".equals(job.getNodes()) && !"N/A".equals(job.getPpn())) {
+            directive(out, "-l", "nodes=" + job.getNodes() + ":ppn=" + job.getPpn());
+        } else if (job.getPpn() == null && job.getNodes() != null) {
+            directive(out, "-l", "nodes=" + job.getNodes());
+        }
+        if (!"N/A".equals(job.getVmem())) {
+            directive(out, "-l", "vmem=" + job.getVmem());
+        }
+        if (!"N/A".equals(job.getMem())) {
+            directive(out, "-l", "mem=" + job.getMem());
+        }
+        if (!"N/A".equals(job.getWallTime())) {
+            directive(out, "-l", "walltime=" + job.getWallTime());
+        }
+        return out.toString();
+    }
+
+    private static void depend(StringBuilder out, String type, List<String> jobIds) {
+        if (jobIds.isEmpty()) {
+            return;
+        }
+        StringBuilder value = new StringBuilder("depend=").append(type);
+        for (String jobId : jobIds) {
+            value.append(':').append(jobId);
+        }
+        directive(out, "-W", value.toString());
+    }
+
+    private static void directive(StringBuilder out, String option, String value) {
+        out.append("#PBS ").append(option).append(' ');
+        // qsub splits the directive on white spaces, except in double quotes
+        if (needsQuotes(value)) {
+            out.append('"').append(value).append('"');
+        } else {
+            out.append(value);
+        }
+        out.append('\n');
+    }
+
+    private static boolean needsQuotes(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            if (Character.isWhitespace(value.charAt(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static int getCachedProfileCount() {
+        return profiles.size();
+    }
+}
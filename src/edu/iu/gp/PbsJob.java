@@ -22,6 +22,11 @@ import org.genepattern.server.genepattern.CustomXmxFlags;
 
 public class PbsJob {
 
+    /**
+     * qsub reads the job script with its #PBS directives from its stdin
+     */
+    private static final String[] QSUB_STDIN = {"qsub"};
+
     private static final Logger log = Logger.getLogger(PbsJob.class);
     
     private static void writeToFile(final String message, final File toFile) {
@@ -52,6 +57,9 @@ public class PbsJob {
     private HashMap<String, String> variables = new HashMap<String, String>();
     private String SubmitArgs = "N/A";
     private String executableFile = "N/A";
+    private CommandTemplate commandTemplate;
+    private boolean scriptOnStdin = false;
+    private String[] qsubCommand;
     private String epilogueFile = "N/A";
     private String wallTime = "1:00:00";
     private String ctime = "N/A";
@@ -85,10 +93,14 @@ public class PbsJob {
         this.outputDir = workDir;
         
         
+        // the config values of the module, user and queue, read once, see
+        // SubmissionProfile
+        SubmissionProfile profile = SubmissionProfile.forSubmission(drmJobSubmission);
+
         // We will need to take care about the java heap size and overall PBS 
         // job memory size requests here 
-        Memory javaXmxMin=drmJobSubmission.getGpConfig().getGPMemoryProperty(drmJobSubmission.getJobContext(), "job.javaXmxMin");
-        Memory javaXmxPad=drmJobSubmission.getGpConfig().getGPMemoryProperty(drmJobSubmission.getJobContext(), "job.javaXmxPad");
+        Memory javaXmxMin=profile.getJavaXmxMin();
+        Memory javaXmxPad=profile.getJavaXmxPad();
         
         List<String> cmdLine;
         if (javaXmxMin==null) {
@@ -102,7 +114,7 @@ public class PbsJob {
 
         
         // by default, use the job.memory from the config
-        Memory queueMem=drmJobSubmission.getMemory();
+        Memory queueMem=profile.getMemory();
         Memory defaultMem = queueMem;
         Memory xmxMem=getXmxMem(cmdLine);
         if (javaXmxPad != null) {
@@ -124,7 +136,7 @@ public class PbsJob {
        
         // we will need to use queueMem value to set memory request 
         if (queueMem != null) {
-            this.vmem = ((long) Math.ceil(queueMem.numGb())) + "gb";
+            this.vmem = queueMem == defaultMem ? profile.getVmem() : SubmissionProfile.vmem(queueMem);
             log.debug("PBS default memory: " + this.vmem);
         }
  
@@ -146,25 +158,39 @@ public class PbsJob {
         // We will create a PBS script file and store it in the working
         // diretoy for further job submission
         CommandTemplate ct = new CommandTemplate(workDir, pbsCommand);
-        ct.createExecutableFile();
-        ct.createEpilogueFile();
-
-        this.executableFile = ct.getPbsFileName();
-        this.epilogueFile = ct.getEpiFileName();
+        this.commandTemplate = ct;
+        // the script is written by buildSubmissionScript(), with
+        // pbs.submit.stdin=true it goes to the stdin of qsub and the
+        // .command.pbs file is only written if the job ends up in a job
+        // array, see getExecutableFile(boolean)
+        this.scriptOnStdin = Boolean.getBoolean("pbs.submit.stdin");
+
+        // the jobs in the usual jobs/<job number> directories share one
+        // epilogue script, see CommandTemplate.sharedEpilogueFile, set the
+        // system property pbs.epilogue.shared=false to write one per job
+        File jobDir = drmJobSubmission.getWorkingDir().getAbsoluteFile();
+        if (!"false".equals(System.getProperty("pbs.epilogue.shared"))
+                && jobDir.getName().equals(String.valueOf(drmJobSubmission.getGpJobNo()))
+                && jobDir.getParentFile() != null) {
+            this.epilogueFile = CommandTemplate.sharedEpilogueFile(jobDir.getParentFile());
+        } else {
+            ct.createEpilogueFile();
+            this.epilogueFile = ct.getEpiFileName();
+        }
 
         // Set some PBS parameters, we can also change some default settings
         // if we have such needs
         // get The default PBS parameters
-        if (drmJobSubmission.getWalltime() != null) {
-            this.wallTime = drmJobSubmission.getWalltime().toString();
+        if (profile.getWallTime() != null) {
+            this.wallTime = profile.getWallTime();
         }
 
-        if (drmJobSubmission.getQueue() != null) {
-            this.queue = drmJobSubmission.getQueue().toString();
+        if (profile.getQueue() != null) {
+            this.queue = profile.getQueue();
         }
 
-        if (drmJobSubmission.getCpuCount() != null) {
-            this.ppn = drmJobSubmission.getCpuCount().toString();
+        if (profile.getPpn() != null) {
+            this.ppn = profile.getPpn();
         }
         
         
@@ -176,8 +202,8 @@ public class PbsJob {
         }
     
         // We can then overwrite the default PBS parameters before building the script
-        if (drmJobSubmission.getProperty("pbs.host") != null) {
-            this.hostName = drmJobSubmission.getProperty("pbs.host");
+        if (profile.getHostName() != null) {
+            this.hostName = profile.getHostName();
         }
 
         //if (drmJobSubmission.getProperty("pbs.mem") != null) {
@@ -188,8 +214,8 @@ public class PbsJob {
         //    this.ppn = drmJobSubmission.getProperty("pbs.ppn").toString();
         //}
 
-        if (drmJobSubmission.getProperty("pbs.cput") != null) {
-            this.ctime = drmJobSubmission.getProperty("pbs.cput").toString();
+        if (profile.getCpuTime() != null) {
+            this.ctime = profile.getCpuTime();
         }
 
         //if (drmJobSubmission.getProperty("pbs.vmem") != null) {
@@ -199,78 +225,56 @@ public class PbsJob {
         
     }
 
-    public void buildSubmissionScript() {
-
-        StringBuilder excuter = new StringBuilder("qsub -N " + getName() + " ");
-
-        if (!"N/A".equals(getQueue()) && "N/A".equals(getHostName())) {
-            excuter.append(" -q ").append(getQueue());
-        } else if ("N/A".equals(getQueue()) && !"N/A".equals(getHostName())) {
-            excuter.append(" -q @").append(getHostName());
-        } else if (!"N/A".equals(getQueue()) && !"N/A".equals(getHostName())) {
-            excuter.append(" -q ").append(getQueue()).append("@").append(getHostName());
-        }
-
-        // We need to put a epilogue script to print out the exit code and other
-        // information
-        excuter.append(" -l " + "epilogue=").append(getEpilogueFile());
+    /**
+     * Put the options of the job into #PBS directives at the top of the job
+     * script, see PbsDirectives, and write the script to .command.pbs unless
+     * it goes to the stdin of qsub
+     */
+    public void buildSubmissionScript() throws IOException {
 
-        if (!"N/A".equals(getNodes()) && !"N/A".equals(getPpn())) {
-            excuter.append(" -l nodes=").append(getNodes()).append(":ppn=").append(getPpn()).append(" ");
-        } else if (getPpn() == null && getNodes() != null) {
-            excuter.append(" -l nodes=").append(getNodes());
-        }
+        commandTemplate.setDirectives(PbsDirectives.forJob(this));
 
-        // if there are some job dependencies, we need to put them into the qsub command
-        //<editor-fold desc="AfterOK">
-        if (afterOK.size() > 0) {
-            StringBuilder strOk = new StringBuilder(" -W depend=afterok");
-            for (int i = 0; i < getAfterOK().size(); i++) {
-                strOk.append(":").append(getAfterOK().get(i));
-            }
-            excuter.append(strOk);
+        if (scriptOnStdin) {
+            this.qsubCommand = QSUB_STDIN;
+        } else {
+            commandTemplate.createExecutableFile();
+            this.executableFile = commandTemplate.getPbsFileName();
+            this.qsubCommand = new String[]{"qsub", executableFile};
         }
 
-        // if there are some job dependencies, we need to put them into the qsub command
-        if (afterany.size() > 0) {
-            StringBuilder strAny = new StringBuilder(" -W depend=afterany");
-            for (int i = 0; i < getAfterany().size(); i++) {
-                strAny.append(":").append(getAfterany().get(i));
+        StringBuilder st = new StringBuilder();
+        for (String arg : qsubCommand) {
+            if (st.length() > 0) {
+                st.append(' ');
             }
-            excuter.append(strAny);
-        }
-
-        if (!"N/A".equals(getVmem())) {
-            excuter.append(" -l vmem=").append(getVmem());
-        }
-
-        if (!"N/A".equals(getMem())) {
-            excuter.append(" -l mem=").append(getMem());
-        }
-                
-        if (!"N/A".equals(getWallTime())) {
-            excuter.append(" -l walltime=" + getWallTime());
-        }
-
-        // we join the standard error and output together
-        // we remove join standard error and output 05/23/2014
-        if (!"N/A".equals(getOutputPath())) {
-            excuter.append(" -o " + getOutputPath());
-        }
-
-        if (!"N/A".equals(getErrrorPath())) {
-            excuter.append(" -e " + getErrrorPath());
+            st.append(arg);
         }
+        setPbsScript(st.toString());
 
-        if (!"N/A".equals(getOutputDir())) {
-            excuter.append(" -d " + getOutputDir());
-        }
+    }
 
-        excuter.append(" " + getExecutableFile());
-        String st = excuter.toString();
+    /**
+     * @return the qsub argv, buildSubmissionScript() must be called first
+     */
+    public String[] getQsubCommand() {
+        return qsubCommand;
+    }
 
-        setPbsScript(st);
+    /**
+     * Jobs with the same key ask for the same resources on the same queue,
+     * so they can be submitted together as one job array
+     */
+    public String getArrayKey() {
+        return getQueue() + "@" + getHostName() + "|nodes=" + getNodes() + ":ppn=" + getPpn()
+                + "|vmem=" + getVmem() + "|mem=" + getMem() + "|walltime=" + getWallTime();
+    }
 
+    /**
+     * @return true if the job depends on other jobs, such a job is never
+     * submitted as part of a job array
+     */
+    public boolean hasDependencies() {
+        return !afterOK.isEmpty() || !afterany.isEmpty();
     }
 
     public void setPbsScript(String st) {
@@ -281,6 +285,14 @@ public class PbsJob {
         return pbsScript;
     }
 
+    /**
+     * @return the job script to send to the stdin of qsub, or null if qsub
+     * gets the .command.pbs file
+     */
+    public String getStdinScript() {
+        return scriptOnStdin ? commandTemplate.getScript() : null;
+    }
+
     
      /**
      * Construct a command line string from the list of args.
@@ -326,7 +338,7 @@ public class PbsJob {
      * @return, an adjusted command line to be submitted to the queue
      */
     protected List<String> adjustXmxFlag(DrmJobSubmission job) {
-        Memory javaXmxMin=job.getGpConfig().getGPMemoryProperty(job.getJobContext(), "job.javaXmxMin");
+        Memory javaXmxMin=SubmissionProfile.forSubmission(job).getJavaXmxMin();
         return adjustXmxFlag(job, javaXmxMin);
     }
 
@@ -472,6 +484,19 @@ public String toString() {
         return executableFile;
     }
 
+    /**
+     * @param create write the .command.pbs file if the script was going to
+     * the stdin of qsub, a job array runs the scripts of its jobs from files
+     * @return the executableFile
+     */
+    public String getExecutableFile(boolean create) throws IOException {
+        if (create && "N/A".equals(executableFile) && commandTemplate != null) {
+            commandTemplate.createExecutableFile();
+            this.executableFile = commandTemplate.getPbsFileName();
+        }
+        return executableFile;
+    }
+
     /**
      * @param executableFile the executableFile to set
      */
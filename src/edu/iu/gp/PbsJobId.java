@@ -0,0 +1,131 @@
+package edu.iu.gp;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.genepattern.drm.DrmJobRecord;
+
+/**
+ * The parts of the ext job id we give to the GenePattern server, e.g.
+ * 265066.m1.mason__m1.mason.indiana.edu
+ * <ul>
+ * <li>the pbs id returned by qsub, 265066.m1.mason (or 265066[4].m1.mason for
+ * an element of a job array)</li>
+ * <li>the cluster, the pbs.host of the job, m1.mason.indiana.edu</li>
+ * <li>the qualified id we pass to qstat and qdel, 265066.m1.mason@m1.mason.indiana.edu</li>
+ * <li>the short id the QstatSnapshot is keyed by, 265066</li>
+ * </ul>
+ *
+ * The same jobs are checked over and over, so the parsed ids are kept in a
+ * bounded LRU map and every poll of a job gets the same instance.
+ *
+ * @author lewu@iu.edu
+ */
+public final class PbsJobId {
+
+    public static final String SEPARATOR = "__";
+
+    private static final int MAX_CACHED_IDS = 10000;
+
+    private static final Map<String, PbsJobId> cache = Collections.synchronizedMap(
+            new LinkedHashMap<String, PbsJobId>(256, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, PbsJobId> eldest) {
+                    return size() > MAX_CACHED_IDS;
+                }
+            });
+
+    private final String extJobId;
+    private final String pbsId;
+    private final String clusterName;
+    private final String qualifiedId;
+    private final String shortId;
+
+    private PbsJobId(String extJobId, String pbsId, String clusterName) {
+        this.extJobId = extJobId;
+        this.pbsId = pbsId;
+        this.clusterName = clusterName;
+        this.qualifiedId = pbsId + "@" + clusterName;
+        this.shortId = QstatSnapshot.shortId(pbsId);
+    }
+
+    /**
+     * @param extJobId e.g. 265066.m1.mason__m1.mason.indiana.edu
+     * @throws IllegalArgumentException if it is not an id we created
+     */
+    public static PbsJobId parse(String extJobId) {
+        PbsJobId id = cache.get(extJobId);
+        if (id == null) {
+            int idx = extJobId.indexOf(SEPARATOR);
+            if (idx <= 0 || idx + SEPARATOR.length() >= extJobId.length()) {
+                throw new IllegalArgumentException("not a pbs ext job id: " + extJobId);
+            }
+            // the cluster name ends at the next separator, if there is one
+            int end = extJobId.indexOf(SEPARATOR, idx + SEPARATOR.length());
+            id = new PbsJobId(extJobId, extJobId.substring(0, idx),
+                    extJobId.substring(idx + SEPARATOR.length(), end < 0 ? extJobId.length() : end));
+            cache.put(extJobId, id);
+        }
+        return id;
+    }
+
+    public static PbsJobId of(DrmJobRecord drmJobRecord) {
+        return parse(drmJobRecord.getExtJobId());
+    }
+
+    /**
+     * @param pbsId the id returned by qsub
+     * @param clusterName the pbs.host of the job
+     */
+    public static PbsJobId of(String pbsId, String clusterName) {
+        return parse(pbsId + SEPARATOR + clusterName);
+    }
+
+    public String getExtJobId() {
+        return extJobId;
+    }
+
+    public String getPbsId() {
+        return pbsId;
+    }
+
+    public String getClusterName() {
+        return clusterName;
+    }
+
+    /**
+     * @return the id with the cluster, e.g. 265066.m1.mason@m1.mason.indiana.edu
+     */
+    public String getQualifiedId() {
+        return qualifiedId;
+    }
+
+    /**
+     * @return the sequence number, e.g. 265066 or 265066[4]
+     */
+    public String getShortId() {
+        return shortId;
+    }
+
+    /**
+     * @return the index of a job array element, or -1
+     */
+    public int getArrayIndex() {
+        return JobArray.indexOf(pbsId);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof PbsJobId && extJobId.equals(((PbsJobId) o).extJobId);
+    }
+
+    @Override
+    public int hashCode() {
+        return extJobId.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return extJobId;
+    }
+}
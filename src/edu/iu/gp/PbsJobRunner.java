@@ -4,9 +4,18 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.text.SimpleDateFormat;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
-import java.util.Scanner;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import org.apache.log4j.Logger;
 import org.genepattern.drm.CpuTime;
@@ -45,37 +54,143 @@ public class PbsJobRunner implements JobRunner {
 
     private static final Logger log = Logger.getLogger(PbsJobRunner.class);
 
+    private final SchedulerBackend backend;
+
+    /**
+     * Tells us when the epilogue output of a job is written, null if the
+     * system property pbs.epilogueWatcher is not set
+     */
+    private final EpilogueWatcher epilogueWatcher;
+
+    /**
+     * Writes the job scripts and runs qsub on bounded pools, and submits the
+     * bursts of compatible jobs as job arrays when pbs.array.windowMillis is
+     * set
+     */
+    private final SubmissionPipeline submissionPipeline;
+
+    /**
+     * The statuses we reported, getStatus answers from it while a status is
+     * fresh, and we report the last known status while pbs_server is
+     * overloaded instead of failing the jobs, see ClusterThrottle
+     */
+    private final JobStatusCache statusCache = JobStatusCache.fromSystemProperties();
+
+    /**
+     * Records the steps of every job, or null if the system property
+     * pbs.timeline.file is not set
+     */
+    private final JobTimeline timeline = JobTimeline.fromSystemProperties();
+
+    /**
+     * Cancel a running job as soon as its stderr contains an error, set the
+     * system property pbs.stderr.failFast=true to turn it on
+     */
+    private final boolean stderrFailFast = Boolean.getBoolean("pbs.stderr.failFast");
+
+    /**
+     * By default, a job in state C whose epilogue output has not been
+     * completed for 10 minutes is reported as failed
+     */
+    public static final long DEFAULT_EPILOGUE_TIMEOUT_MILLIS = 600000L;
+
+    /**
+     * How long we wait for the epilogue output of a completed job to get its
+     * exit code, set the system property pbs.epilogue.timeoutMillis to change
+     * it. An epilogue script which died half way never completes it.
+     */
+    private final long epilogueTimeoutMillis = Long.getLong("pbs.epilogue.timeoutMillis", DEFAULT_EPILOGUE_TIMEOUT_MILLIS);
+
+    /**
+     * By default we run the Torque/Moab commands, set the system property
+     * pbs.backend=simulator to run the jobs on the in memory PBS simulator
+     */
+    public PbsJobRunner() {
+        this("simulator".equals(System.getProperty("pbs.backend"))
+                ? SimulatedSchedulerBackend.getInstance() : new CliSchedulerBackend());
+    }
+
+    public PbsJobRunner(SchedulerBackend backend) {
+        this.backend = backend;
+        this.epilogueWatcher = EpilogueWatcher.fromSystemProperties();
+        this.submissionPipeline = SubmissionPipeline.fromSystemProperties(backend);
+        PbsMetrics.getInstance().register(statusCache, submissionPipeline);
+        PbsMetrics.getInstance().setTimeline(timeline);
+        PbsMetrics.getInstance().startDumpFromSystemProperties();
+        log.info("PbsJobRunner uses " + backend.getClass().getSimpleName());
+    }
+
     @Override
     public void stop() {
         log.info("Stopping PbsJobRunner");
+        log.info(submissionPipeline);
+        log.info(statusCache);
+        submissionPipeline.shutdown();
+        PbsMetrics.getInstance().stopDump();
+        SchedulerCommandExecutor.getInstance().closeShells();
+        if (epilogueWatcher != null) {
+            epilogueWatcher.close();
+        }
     }
 
     @Override
     public String startJob(final DrmJobSubmission drmJobSubmission) throws CommandExecutorException {
+        long start = System.nanoTime();
+        try {
+            return submitJob(drmJobSubmission);
+        } finally {
+            PbsMetrics.getInstance().recordOperation("startJob", System.nanoTime() - start);
+        }
+    }
+
+    private String submitJob(final DrmJobSubmission drmJobSubmission) throws CommandExecutorException {
 
         final String gpJobId = drmJobSubmission.getGpJobNo().toString();
         final String workDir = drmJobSubmission.getWorkingDir().getAbsolutePath();
         String pbsJobID, hostName = null;
+        final String module = drmJobSubmission.getJobContext() != null ? drmJobSubmission.getJobContext().getLsid() : null;
+        if (timeline != null) {
+            timeline.record(drmJobSubmission.getGpJobNo(), JobTimeline.Event.SUBMIT, drmJobSubmission.getQueue(), module);
+        }
 
         // Create a PBS job instance
         try {
-            PbsJob pbsjob = new PbsJob(drmJobSubmission);
-
-            /* 
-             // we can still manually change the PBS setting after 
-             // the pbsjob instance has been created 
-             pbsjob.setWallTime("2:00:00");
-             pbsjob.setQueue("batch");
-             pbsjob.setNodes("1");
-             pbsjob.setHostName("m1.mason.indiana.edu");
-             pbsjob.setPpn("4");
-             pbsjob.setVmem("64gb");
-             */
-            // create the pbs submission command string
-            pbsjob.buildSubmissionScript();
-
-            // submit the job
-            pbsJobID = PBS.qsub(pbsjob.getPbsScript());
+            // the pipeline writes the scripts and runs qsub on its own
+            // threads, we still wait for the pbs job id because the GP
+            // server needs it as the return value
+            pbsJobID = submissionPipeline.submit(new Callable<PbsJob>() {
+                @Override
+                public PbsJob call() throws Exception {
+                    // a job which is run again in the same working directory
+                    // must not be seen as done from the epilogue output of
+                    // its last run
+                    EpilogueRecord.evict(drmJobSubmission.getWorkingDir());
+                    Files.deleteIfExists(EpilogueRecord.epilogueFile(drmJobSubmission.getWorkingDir()).toPath());
+
+                    PbsJob pbsjob = new PbsJob(drmJobSubmission);
+
+                    /* 
+                     // we can still manually change the PBS setting after 
+                     // the pbsjob instance has been created 
+                     pbsjob.setWallTime("2:00:00");
+                     pbsjob.setQueue("batch");
+                     pbsjob.setNodes("1");
+                     pbsjob.setHostName("m1.mason.indiana.edu");
+                     pbsjob.setPpn("4");
+                     pbsjob.setVmem("64gb");
+                     */
+                    // create the pbs submission command string
+                    pbsjob.buildSubmissionScript();
+                    return pbsjob;
+                }
+            }).get();
+
+            if (timeline != null) {
+                timeline.record(drmJobSubmission.getGpJobNo(), JobTimeline.Event.QSUB_RETURNED, drmJobSubmission.getQueue(), module);
+            }
+            if (epilogueWatcher != null) {
+                epilogueWatcher.watch(drmJobSubmission.getWorkingDir());
+            }
 
             //after the job completes, if the logfile param was set, write the command line to the logfile
             logCommandLine(drmJobSubmission);
@@ -86,7 +201,7 @@ public class PbsJobRunner implements JobRunner {
             hostName = drmJobSubmission.getProperty("pbs.host");
             if (hostName != null) {
                 //return workDir + "__" + gpJobId + "__" + pbsJobID + "__" + hostName;
-                return pbsJobID + "__" + hostName;
+                return PbsJobId.of(pbsJobID, hostName).getExtJobId();
             } else {
                 // we must know the cluster name and build it into the jobid for 
                 // further checking the job status. 
@@ -94,19 +209,27 @@ public class PbsJobRunner implements JobRunner {
                         + "from the config.yaml file");
             }
 
-        } catch (IOException e) {
-            System.err.println("Error: " + e.getMessage());
-            throw new CommandExecutorException(e.getMessage());
         } catch (InterruptedException e) {
             throw new CommandExecutorException(e.getMessage());
-        } catch (PbsException e) {
-            throw new CommandExecutorException(e.getMessage());
+        } catch (ExecutionException e) {
+            Throwable cause = SubmissionPipeline.cause(e);
+            log.error("Error submitting job " + gpJobId + ": " + cause.getMessage());
+            throw new CommandExecutorException(cause.getMessage());
         }
 
     }
 
     @Override
     public DrmJobStatus getStatus(final DrmJobRecord drmJobRecord) {
+        long start = System.nanoTime();
+        try {
+            return checkStatus(drmJobRecord);
+        } finally {
+            PbsMetrics.getInstance().recordOperation("getStatus", System.nanoTime() - start);
+        }
+    }
+
+    private DrmJobStatus checkStatus(final DrmJobRecord drmJobRecord) {
         final String drmJobId = drmJobRecord.getExtJobId();
         DrmJobStatus drmJobStatus;
 
@@ -117,72 +240,104 @@ public class PbsJobRunner implements JobRunner {
             //String workDirPath = drmJobId.split("__")[0];
             String workDirPath = drmJobRecord.getWorkingDir().toString();
             //String gpId = drmJobId.split("__")[1];
-            String pbsId = drmJobId.split("__")[0];
-            String clusterName = drmJobId.split("__")[1];
-            String pbsJobStatus = PBS.qstat(drmJobRecord);
+            final PbsJobId jobId = PbsJobId.parse(drmJobId);
+            String pbsId = jobId.getPbsId();
+            QstatRecord qstatRecord;
+            if (epilogueWatcher != null) {
+                // the jobs submitted before a restart are watched from their first check
+                epilogueWatcher.watch(drmJobRecord.getWorkingDir());
+            }
+            boolean epilogueDone = epilogueWatcher != null && epilogueWatcher.isComplete(drmJobRecord.getWorkingDir());
+
+            // a queued job is not checked again for a while, see JobStatusCache
+            DrmJobStatus cached = statusCache.get(drmJobId, epilogueDone);
+            if (cached != null) {
+                return cached;
+            }
+
+            boolean epilogueRead = false;
+            if (epilogueDone) {
+                // the epilogue output is there, the job is done and we
+                // don't need to ask the scheduler
+                qstatRecord = QstatRecord.forState(pbsId, "C");
+            } else {
+                // one qstat (or the cluster snapshot) gives us everything we need
+                qstatRecord = backend.status(drmJobRecord);
+            }
+            String pbsJobStatus = qstatRecord.getJobState();
             //log.error(new String("job status is : " + pbsJobStatus));
 
             if (pbsJobStatus != null && !pbsJobStatus.isEmpty()) {
                 if (pbsJobStatus.trim().compareToIgnoreCase("R") == 0) {
                     //log.error(new String("start to check realtime info"));
-                    String cputInfo = null ;
-                    cputInfo = PBS.PbsResUsage(drmJobRecord,"cput");
-                    String vmemInfo = null;
-                    vmemInfo = PBS.PbsResUsage(drmJobRecord,"vmem");
-                    String startInfo = null ;
-                    startInfo = PBS.PbsResUsage(drmJobRecord,"start_time");
-                    String qtimeInfo = null;
-                    qtimeInfo = PBS.PbsResUsage(drmJobRecord,"qtime");
+                    Long cputInfo = qstatRecord.getCpuTime();
+                    Long vmemInfo = qstatRecord.getVmem();
+                    Date startInfo = qstatRecord.getStartDate();
+                    Date qtimeInfo = qstatRecord.getQtimeDate();
                     //log.error(new String("finish to check realtime info"));
                     
                     DrmJobStatus.Builder b = new DrmJobStatus.Builder(drmJobId, DrmJobState.RUNNING);
                     
                     if (vmemInfo != null ){
-                        b.memory(Long.parseLong(vmemInfo));
+                        b.memory(vmemInfo);
                     }
                     if (cputInfo != null ){
-                        b.cpuTime(new CpuTime(Long.parseLong(cputInfo), TimeUnit.SECONDS));
+                        b.cpuTime(new CpuTime(cputInfo, TimeUnit.SECONDS));
                     }
                     if (startInfo !=null ){
                         //log.error(new String("get data back:" + startInfo));
-                        SimpleDateFormat dt = new SimpleDateFormat("EEE MMM d HH:mm:ss yyyy");
-                        Date sdate = dt.parse(startInfo);
-                        b.startTime(sdate);
+                        b.startTime(startInfo);
                     }
                     if (qtimeInfo !=null ){
-                       
-                        SimpleDateFormat dt = new SimpleDateFormat("EEE MMM d HH:mm:ss yyyy");
-                        Date qdate = dt.parse(qtimeInfo);
-                        b.submitTime(qdate);
+                        b.submitTime(qtimeInfo);
+                    }
+                    recordEvent(drmJobRecord, JobTimeline.Event.STARTED,
+                            startInfo != null ? startInfo.getTime() : System.currentTimeMillis(), qstatRecord.getQueue());
+
+                    // scan what the job has written to stderr since the last check
+                    String stderrError = scanRunningStderr(drmJobRecord.getStderrFile());
+                    if (stderrError != null && stderrFailFast) {
+                        // don't let the job burn node hours after a fatal error
+                        log.error("job " + drmJobId + " printed '" + stderrError + "' to stderr, cancelling it");
+                        backend.cancel(jobId.getQualifiedId());
+                        drmJobStatus = new DrmJobStatus.Builder(drmJobId, DrmJobState.FAILED).exitCode(-1).jobStatusMessage("job was cancelled, stderr contains errors (" + stderrError + "), return " + pbsJobStatus).build();
+                    } else {
+                        if (stderrError != null) {
+                            b.jobStatusMessage("job is running, stderr contains errors (" + stderrError + ")");
+                        }
+                        drmJobStatus = b.build();
                     }
-                    drmJobStatus = b.build();
                 } // We got the "C" status, that means job was finished. But we still need to 
                 // check what is the actual exit code. 
                 else if (pbsJobStatus.trim().compareToIgnoreCase("C") == 0) {
 
                     File stderr = drmJobRecord.getStderrFile();
-                    File epilogueOut = new File(new File(workDirPath,".pbs"), ".epilogue.pbs");
-                    //File epilogueOut = new File(workDirPath, ".epilogue.pbs");
+                    // the epilogue output is parsed once and kept for the job
+                    EpilogueRecord epilogue = EpilogueRecord.forJob(drmJobRecord.getWorkingDir());
 
                     // We will need to check whether the epilogue.pbs has 
                     // been written to job working directory.                
-                    if (epilogueOut.exists()) {
+                    if (epilogue != null && !epilogue.isComplete()) {
+                        // written by an old epilogue script which is still
+                        // appending to it, or by one which died half way
+                        long age = System.currentTimeMillis() - EpilogueRecord.epilogueFile(drmJobRecord.getWorkingDir()).lastModified();
+                        if (age > epilogueTimeoutMillis) {
+                            drmJobStatus = new DrmJobStatus.Builder(drmJobId, DrmJobState.FAILED).exitCode(-1).jobStatusMessage("the epilogue output has no exit code after " + (age / 1000L) + " seconds, return " + pbsJobStatus).build();
+                        } else {
+                            drmJobStatus = new DrmJobStatus.Builder(drmJobId, DrmJobState.RUNNING).jobStatusMessage("waiting for the epilogue output, return " + pbsJobStatus).build();
+                        }
+                    } else if (epilogue != null) {
+                        epilogueRead = true;
+                        recordEvent(drmJobRecord, JobTimeline.Event.EPILOGUE,
+                                EpilogueRecord.epilogueFile(drmJobRecord.getWorkingDir()).lastModified(), null);
 
-                        String epiData = (new Scanner(epilogueOut)).useDelimiter("\\z").next();
-                        String exitCode = PBS.getKeyValue("Job_Exit_Code", epiData.split("\n"));
-                        String queueName = PBS.getKeyValue("Queue_Name", epiData.split("\n"));
-                        String resourcesUsed = PBS.getKeyValue("Resources_Used", epiData.split("\n"));
                         // get the cpu time in second
-                        Long cput = PBS.getPbsFinalResUsage("cput", resourcesUsed.split(","));
-                        // get the walltime time in second
-                        Long walltime = PBS.getPbsFinalResUsage("walltime", resourcesUsed.split(","));
-                        // get the mem usage in bytes
-                        Long mem = PBS.getPbsFinalResUsage("mem", resourcesUsed.split(","));
+                        Long cput = epilogue.getCpuTime();
                         // get the vmem usage in bytes
-                        Long vmem = PBS.getPbsFinalResUsage("vmem", resourcesUsed.split(","));
+                        Long vmem = epilogue.getVmem();
 
                         // If job finished successfully, we got exit_code = 0
-                        if (exitCode.compareToIgnoreCase("0") == 0) {
+                        if (epilogue.isSuccess()) {
 
                             // PBS script finshed successfully, but we need to do one more check on
                             // stderr file to see whether there are some error messages shown.
@@ -277,7 +432,8 @@ public class PbsJobRunner implements JobRunner {
                 } else if (pbsJobStatus.trim().compareToIgnoreCase("Q") == 0) {
                     // job is queued, we want to know when job will start
                     log.debug("we need to check the showstart time");
-                    String startTime = PBS.showstart(drmJobRecord);
+                    recordEvent(drmJobRecord, JobTimeline.Event.FIRST_QUEUED, System.currentTimeMillis(), qstatRecord.getQueue());
+                    String startTime = backend.startEstimate(drmJobRecord);
                     
                     drmJobStatus = new DrmJobStatus.Builder(drmJobId, DrmJobState.QUEUED).jobStatusMessage(startTime).build();
                 } else if (pbsJobStatus.trim().compareToIgnoreCase("E") == 0) {
@@ -306,10 +462,29 @@ public class PbsJobRunner implements JobRunner {
                 drmJobStatus = new DrmJobStatus.Builder(drmJobId, DrmJobState.FAILED).exitCode(-1).jobStatusMessage("receive null from PBS, return " + pbsJobStatus).build();
             }
 
+            // the final status is reported, we don't need to watch the job
+            // any more, a job in state C may still wait for its epilogue
+            if (isFinal(drmJobStatus.getJobState())) {
+                forgetJob(drmJobRecord);
+            }
+
+            statusCache.put(drmJobId, pbsJobStatus != null ? pbsJobStatus.trim() : "", drmJobStatus, qstatRecord, epilogueRead);
             return drmJobStatus;
 
         } catch (Exception e) {
 
+            if (ClusterThrottle.isOverload(e)) {
+                // pbs_server did not answer, that says nothing about the job,
+                // we report what we knew before and check again later
+                DrmJobStatus last = statusCache.getLastKnown(drmJobId);
+                log.warn("can not check job " + drmJobId + ": " + e.getMessage()
+                        + (last != null ? ", reporting the last known status" : ""));
+                if (last != null) {
+                    return last;
+                }
+                return new DrmJobStatus.Builder(drmJobId, DrmJobState.UNDETERMINED).jobStatusMessage("can not check the job status, " + e.getMessage()).build();
+            }
+
             // we receive an Exception while checking the job status
             // it is very likely that this job has been finished long time ago
             // we make this job as failed
@@ -329,9 +504,8 @@ public class PbsJobRunner implements JobRunner {
 
             //String workDirPath = drmJobId.split("__")[0];
             //String gpId = drmJobId.split("__")[1];
-            String pbsId = drmJobId.split("__")[0];
-            String clusterName = drmJobId.split("__")[1];
-            boolean delStatus = PBS.qdel(pbsId + "@" + clusterName);
+            boolean delStatus = backend.cancel(PbsJobId.parse(drmJobId).getQualifiedId());
+            statusCache.remove(drmJobId);
 
             return delStatus;
 
@@ -348,6 +522,179 @@ public class PbsJobRunner implements JobRunner {
 
     }
 
+    /**
+     * Cancel many jobs, e.g. all the steps of a pipeline, with one qdel per
+     * cluster instead of one qdel per job
+     *
+     * @return the error message of every job we could not cancel, keyed by
+     * the ext job id, empty if all the jobs were cancelled
+     */
+    public Map<String, String> cancelJobs(Collection<DrmJobRecord> drmJobRecords) throws CommandExecutorException {
+        Map<String, String> extIds = new LinkedHashMap<String, String>();
+        for (DrmJobRecord drmJobRecord : drmJobRecords) {
+            PbsJobId jobId = PbsJobId.of(drmJobRecord);
+            extIds.put(jobId.getQualifiedId(), jobId.getExtJobId());
+        }
+        try {
+            Map<String, String> failed = backend.cancelAll(extIds.keySet());
+            Map<String, String> errors = new LinkedHashMap<String, String>();
+            for (Map.Entry<String, String> job : extIds.entrySet()) {
+                String error = failed.get(job.getKey());
+                if (error != null) {
+                    errors.put(job.getValue(), error);
+                } else {
+                    statusCache.remove(job.getValue());
+                }
+            }
+            log.info("cancelled " + (extIds.size() - errors.size()) + " of " + extIds.size() + " jobs");
+            return errors;
+        } catch (IOException e) {
+            throw new CommandExecutorException("Can not cancel " + extIds.size() + " jobs ERROR: " + e.getMessage());
+        } catch (InterruptedException e) {
+            throw new CommandExecutorException("Can not cancel " + extIds.size() + " jobs ERROR: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Cancel all the jobs a GenePattern user has on the cluster, the jobs are
+     * found in the bulk status of the cluster by their name,
+     * gp-job-&lt;gpJobNo&gt;-&lt;userId&gt; (or gp-array-... for the jobs submitted
+     * as job arrays)
+     *
+     * @param clusterName the pbs.host of the jobs
+     * @return the error message of every job we could not cancel, keyed by
+     * the pbs job id, empty if all the jobs were cancelled
+     * @throws CommandExecutorException if we can not list the jobs of the
+     * cluster or can not run the cancel
+     */
+    public Map<String, String> cancelAllForUser(String gpUserId, String clusterName) throws CommandExecutorException {
+        Map<String, QstatRecord> records;
+        try {
+            records = backend.bulkStatus(clusterName);
+        } catch (IOException e) {
+            throw new CommandExecutorException("Can not list the jobs of " + gpUserId + " on " + clusterName + " ERROR: " + e.getMessage());
+        } catch (InterruptedException e) {
+            throw new CommandExecutorException("Can not list the jobs of " + gpUserId + " on " + clusterName + " ERROR: " + e.getMessage());
+        } catch (PbsException e) {
+            throw new CommandExecutorException("Can not list the jobs of " + gpUserId + " on " + clusterName + " ERROR: " + e.getMessage());
+        }
+        List<String> pbsJobIds = new ArrayList<String>();
+        Set<String> shortIds = new HashSet<String>();
+        for (Map.Entry<String, QstatRecord> job : records.entrySet()) {
+            QstatRecord record = job.getValue();
+            if (isJobOfUser(record.getJobName(), gpUserId) && !"C".equals(record.getJobState())) {
+                pbsJobIds.add(record.getJobId() + "@" + clusterName);
+                shortIds.add(job.getKey());
+            }
+        }
+        if (pbsJobIds.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        try {
+            Map<String, String> errors = backend.cancelAll(pbsJobIds);
+            statusCache.removeJobs(clusterName, shortIds);
+            log.info("cancelled " + (pbsJobIds.size() - errors.size()) + " of the " + pbsJobIds.size() + " jobs of " + gpUserId + " on " + clusterName);
+            return errors;
+        } catch (IOException e) {
+            throw new CommandExecutorException("Can not cancel the jobs of " + gpUserId + " ERROR: " + e.getMessage());
+        } catch (InterruptedException e) {
+            throw new CommandExecutorException("Can not cancel the jobs of " + gpUserId + " ERROR: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @param jobName e.g. gp-job-1234-alice or gp-array-1234-alice, Torque
+     * names the elements of a job array &lt;Job_Name&gt;-&lt;index&gt;, e.g.
+     * gp-array-1234-alice-4
+     */
+    static boolean isJobOfUser(String jobName, String gpUserId) {
+        if (jobName == null) {
+            return false;
+        }
+        String rest;
+        if (jobName.startsWith("gp-job-")) {
+            rest = jobName.substring("gp-job-".length());
+        } else if (jobName.startsWith("gp-array-")) {
+            rest = jobName.substring("gp-array-".length());
+        } else {
+            return false;
+        }
+        int dash = rest.indexOf('-');
+        if (dash <= 0) {
+            return false;
+        }
+        String user = rest.substring(dash + 1);
+        if (user.equals(gpUserId)) {
+            return true;
+        }
+        return jobName.startsWith("gp-array-") && user.startsWith(gpUserId + "-")
+                && isDigits(user.substring(gpUserId.length() + 1));
+    }
+
+    private static boolean isDigits(String s) {
+        if (s.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            if (!Character.isDigit(s.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Scan the stderr of a running job incrementally, so the final check
+     * when the job is done only needs to read the rest of the file
+     *
+     * @return the error we found in the stderr so far, or null
+     */
+    private static String scanRunningStderr(File stderr) {
+        if (stderr == null || !stderr.exists()) {
+            return null;
+        }
+        try {
+            return StderrScanner.getDefault().scanAppended(stderr);
+        } catch (IOException e) {
+            // we will check the whole file when the job is done
+            log.debug("can not scan " + stderr + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Add a step of the job to the timeline, if we record one
+     */
+    private void recordEvent(DrmJobRecord drmJobRecord, JobTimeline.Event event, long timeMillis, String queue) {
+        if (timeline != null) {
+            timeline.record(drmJobRecord.getGpJobNo(), event, timeMillis, queue, drmJobRecord.getLsid());
+        }
+    }
+
+    /**
+     * Drop what we keep for a job after its final status has been reported
+     */
+    private static boolean isFinal(DrmJobState state) {
+        return state == DrmJobState.DONE || state == DrmJobState.FAILED || state == DrmJobState.CANCELLED
+                || state == DrmJobState.TERMINATED || state == DrmJobState.ABORTED;
+    }
+
+    private void forgetJob(DrmJobRecord drmJobRecord) {
+        if (timeline != null) {
+            timeline.record(drmJobRecord.getGpJobNo(), JobTimeline.Event.DONE, null, drmJobRecord.getLsid());
+            timeline.forget(drmJobRecord.getGpJobNo());
+        }
+        if (epilogueWatcher != null) {
+            epilogueWatcher.forget(drmJobRecord.getWorkingDir());
+        }
+        if (drmJobRecord.getStderrFile() != null) {
+            StderrScanner.getDefault().forget(drmJobRecord.getStderrFile());
+        }
+        if (drmJobRecord.getWorkingDir() != null) {
+            EpilogueRecord.evict(drmJobRecord.getWorkingDir());
+        }
+    }
+
     /**
      * Helper function to output some messages for debugging
      *
@@ -0,0 +1,412 @@
+package edu.iu.gp;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.ObjectName;
+import org.apache.log4j.Logger;
+
+/**
+ * The numbers of the job runner: how long every scheduler command (qsub,
+ * qstat, qdel, showstart ...) takes, how it ended, how many processes we
+ * fork and how many are running, how long startJob and getStatus take, and
+ * the stats of the job status cache and the submission pipeline.
+ *
+ * The latencies are kept in LatencyHistograms, one per command and one per
+ * runner operation. The metrics are published as the JMX MBean
+ * edu.iu.gp:type=PbsMetrics, and, when the system property pbs.metrics.file
+ * is set, written to that file in the Prometheus text format every
+ * pbs.metrics.intervalMillis (default 60000) ms. The file is written next to
+ * the old one and then renamed, so a scraper never reads half of it.
+ *
+ * @author lewu@iu.edu
+ */
+public class PbsMetrics implements PbsMetricsMBean {
+
+    private static final Logger log = Logger.getLogger(PbsMetrics.class);
+
+    public static final String OBJECT_NAME = "edu.iu.gp:type=PbsMetrics";
+    public static final long DEFAULT_DUMP_INTERVAL_MILLIS = 60000L;
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    /**
+     * How a scheduler command ended, a command which printed to stderr and
+     * exited with an error counts as NONZERO
+     */
+    public enum ExitPath {
+        OK, STDERR, NONZERO, TIMEOUT, EXCEPTION
+    }
+
+    private static final PbsMetrics instance = new PbsMetrics();
+
+    static {
+        instance.registerMBean();
+    }
+
+    private final Map<String, CommandStats> commands = new ConcurrentHashMap<String, CommandStats>();
+    private final Map<String, LatencyHistogram> operations = new ConcurrentHashMap<String, LatencyHistogram>();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong forks = new AtomicLong();
+    private final RateCounter forkRate = new RateCounter(60);
+
+    private volatile JobStatusCache statusCache;
+    private volatile SubmissionPipeline submissionPipeline;
+    private volatile JobTimeline timeline;
+    private ScheduledExecutorService dumper;
+
+    PbsMetrics() {
+    }
+
+    public static PbsMetrics getInstance() {
+        return instance;
+    }
+
+    private void registerMBean() {
+        if (!Boolean.parseBoolean(System.getProperty("pbs.metrics.jmx", "true"))) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+        } catch (InstanceAlreadyExistsException e) {
+            // loaded by another class loader of the same server
+            log.debug(OBJECT_NAME + " is already registered");
+        } catch (Exception e) {
+            log.error("can not register " + OBJECT_NAME + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * The job runner publishes the stats of its status cache and submission
+     * pipeline with ours
+     */
+    public void register(JobStatusCache statusCache, SubmissionPipeline submissionPipeline) {
+        this.statusCache = statusCache;
+        this.submissionPipeline = submissionPipeline;
+    }
+
+    /**
+     * @param timeline the job timeline of the runner, or null
+     */
+    public void setTimeline(JobTimeline timeline) {
+        this.timeline = timeline;
+    }
+
+    /**
+     * A scheduler command is about to start
+     */
+    public void commandStarted() {
+        inFlight.incrementAndGet();
+    }
+
+    /**
+     * @param command the command and its arguments
+     * @param elapsedNanos from commandStarted() to the end of the command
+     */
+    public void commandFinished(String[] command, long elapsedNanos, ExitPath exitPath) {
+        inFlight.decrementAndGet();
+        CommandStats stats = commandStats(commandName(command));
+        stats.latency.recordNanos(elapsedNanos);
+        stats.exits.incrementAndGet(exitPath.ordinal());
+    }
+
+    /**
+     * We started a new process, a command or a scheduler shell
+     */
+    public void forked() {
+        forks.incrementAndGet();
+        forkRate.increment();
+    }
+
+    /**
+     * @param operation startJob or getStatus
+     */
+    public void recordOperation(String operation, long elapsedNanos) {
+        LatencyHistogram histogram = operations.get(operation);
+        if (histogram == null) {
+            operations.putIfAbsent(operation, new LatencyHistogram());
+            histogram = operations.get(operation);
+        }
+        histogram.recordNanos(elapsedNanos);
+    }
+
+    private CommandStats commandStats(String name) {
+        CommandStats stats = commands.get(name);
+        if (stats == null) {
+            commands.putIfAbsent(name, new CommandStats());
+            stats = commands.get(name);
+        }
+        return stats;
+    }
+
+    /**
+     * @return the name we file the command under, e.g. qstat for
+     * /usr/bin/qstat -f
+     */
+    static String commandName(String[] command) {
+        if (command == null || command.length == 0) {
+            return "unknown";
+        }
+        return baseName(command[0]);
+    }
+
+    private static String baseName(String path) {
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+
+    @Override
+    public String[] getCommandNames() {
+        return new TreeMap<String, CommandStats>(commands).keySet().toArray(new String[0]);
+    }
+
+    @Override
+    public long getCommandCount() {
+        long count = 0L;
+        for (CommandStats stats : commands.values()) {
+            count += stats.latency.getCount();
+        }
+        return count;
+    }
+
+    @Override
+    public double getLatencyMillis(String name, double percentile) {
+        LatencyHistogram histogram = operations.get(name);
+        if (histogram == null) {
+            CommandStats stats = commands.get(name);
+            histogram = stats != null ? stats.latency : null;
+        }
+        return histogram != null ? histogram.getPercentile(percentile) / 1000.0 : 0.0;
+    }
+
+    public LatencyHistogram getCommandLatency(String command) {
+        CommandStats stats = commands.get(command);
+        return stats != null ? stats.latency : null;
+    }
+
+    public LatencyHistogram getOperationLatency(String operation) {
+        return operations.get(operation);
+    }
+
+    public long getExitCount(ExitPath exitPath) {
+        long count = 0L;
+        for (CommandStats stats : commands.values()) {
+            count += stats.exits.get(exitPath.ordinal());
+        }
+        return count;
+    }
+
+    @Override
+    public long getTimeoutCount() {
+        return getExitCount(ExitPath.TIMEOUT);
+    }
+
+    @Override
+    public long getStderrCount() {
+        return getExitCount(ExitPath.STDERR);
+    }
+
+    @Override
+    public long getNonzeroExitCount() {
+        return getExitCount(ExitPath.NONZERO);
+    }
+
+    @Override
+    public long getExceptionCount() {
+        return getExitCount(ExitPath.EXCEPTION);
+    }
+
+    @Override
+    public int getProcessesInFlight() {
+        return inFlight.get();
+    }
+
+    @Override
+    public long getForkCount() {
+        return forks.get();
+    }
+
+    @Override
+    public long getForksPerMinute() {
+        return forkRate.getCount();
+    }
+
+    @Override
+    public long getStatusCacheHitCount() {
+        JobStatusCache cache = statusCache;
+        return cache != null ? cache.getHitCount() : 0L;
+    }
+
+    @Override
+    public long getStatusCacheMissCount() {
+        JobStatusCache cache = statusCache;
+        return cache != null ? cache.getMissCount() : 0L;
+    }
+
+    @Override
+    public double getStatusCacheHitRate() {
+        JobStatusCache cache = statusCache;
+        return cache != null ? cache.getHitRate() : 0.0;
+    }
+
+    @Override
+    public int getSubmissionQueueDepth() {
+        SubmissionPipeline pipeline = submissionPipeline;
+        return pipeline != null ? pipeline.getQueueDepth() : 0;
+    }
+
+    @Override
+    public double getSubmissionsPerSecond() {
+        SubmissionPipeline pipeline = submissionPipeline;
+        return pipeline != null ? pipeline.getSubmissionsPerSecond() : 0.0;
+    }
+
+    @Override
+    public long getSubmittedCount() {
+        SubmissionPipeline pipeline = submissionPipeline;
+        return pipeline != null ? pipeline.getSubmittedCount() : 0L;
+    }
+
+    @Override
+    public long getSubmissionFailedCount() {
+        SubmissionPipeline pipeline = submissionPipeline;
+        return pipeline != null ? pipeline.getFailedCount() : 0L;
+    }
+
+    @Override
+    public String getTimelineReport() {
+        JobTimeline t = timeline;
+        return t != null ? t.report() : "no job timeline, set pbs.timeline.file";
+    }
+
+    @Override
+    public String getMetricsText() {
+        StringBuilder out = new StringBuilder(4096);
+
+        out.append("# TYPE pbs_command_latency_seconds summary\n");
+        Map<String, CommandStats> sorted = new TreeMap<String, CommandStats>(commands);
+        for (Map.Entry<String, CommandStats> entry : sorted.entrySet()) {
+            appendSummary(out, "pbs_command_latency_seconds", "command", entry.getKey(), entry.getValue().latency);
+        }
+        out.append("# TYPE pbs_command_exits_total counter\n");
+        for (Map.Entry<String, CommandStats> entry : sorted.entrySet()) {
+            for (ExitPath exitPath : ExitPath.values()) {
+                out.append("pbs_command_exits_total{command=\"").append(entry.getKey()).append("\",path=\"")
+                        .append(exitPath.name().toLowerCase()).append("\"} ")
+                        .append(entry.getValue().exits.get(exitPath.ordinal())).append('\n');
+            }
+        }
+        out.append("# TYPE pbs_operation_latency_seconds summary\n");
+        for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<String, LatencyHistogram>(operations).entrySet()) {
+            appendSummary(out, "pbs_operation_latency_seconds", "operation", entry.getKey(), entry.getValue());
+        }
+
+        appendValue(out, "pbs_processes_in_flight", "gauge", getProcessesInFlight());
+        appendValue(out, "pbs_forks_total", "counter", getForkCount());
+        appendValue(out, "pbs_forks_last_minute", "gauge", getForksPerMinute());
+
+        if (statusCache != null) {
+            appendValue(out, "pbs_status_cache_hits_total", "counter", getStatusCacheHitCount());
+            appendValue(out, "pbs_status_cache_misses_total", "counter", getStatusCacheMissCount());
+            appendValue(out, "pbs_status_cache_hit_ratio", "gauge", getStatusCacheHitRate());
+            appendValue(out, "pbs_status_cache_jobs", "gauge", statusCache.size());
+        }
+        if (submissionPipeline != null) {
+            appendValue(out, "pbs_submission_queue_depth", "gauge", getSubmissionQueueDepth());
+            appendValue(out, "pbs_submissions_per_second", "gauge", getSubmissionsPerSecond());
+            appendValue(out, "pbs_submissions_total", "counter", getSubmittedCount());
+            appendValue(out, "pbs_submission_failures_total", "counter", getSubmissionFailedCount());
+        }
+        return out.toString();
+    }
+
+    private static void appendSummary(StringBuilder out, String metric, String label, String name, LatencyHistogram histogram) {
+        String labels = "{" + label + "=\"" + name + "\"";
+        for (double quantile : QUANTILES) {
+            out.append(metric).append(labels).append(",quantile=\"").append(quantile).append("\"} ")
+                    .append(histogram.getPercentile(quantile * 100.0) / 1e6).append('\n');
+        }
+        out.append(metric).append("_max").append(labels).append("} ").append(histogram.getMax() / 1e6).append('\n');
+        out.append(metric).append("_sum").append(labels).append("} ")
+                .append(histogram.getMean() * histogram.getCount() / 1e6).append('\n');
+        out.append(metric).append("_count").append(labels).append("} ").append(histogram.getCount()).append('\n');
+    }
+
+    private static void appendValue(StringBuilder out, String metric, String type, Number value) {
+        out.append("# TYPE ").append(metric).append(' ').append(type).append('\n');
+        out.append(metric).append(' ').append(value).append('\n');
+    }
+
+    /**
+     * Write the metrics to the file pbs.metrics.file, if it is set, every
+     * pbs.metrics.intervalMillis ms
+     */
+    public synchronized void startDumpFromSystemProperties() {
+        String path = System.getProperty("pbs.metrics.file");
+        if (path == null || path.trim().isEmpty() || dumper != null) {
+            return;
+        }
+        final File file = new File(path.trim());
+        long interval = Long.getLong("pbs.metrics.intervalMillis", DEFAULT_DUMP_INTERVAL_MILLIS);
+        dumper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "pbs-metrics-dump");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        dumper.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    dump(file);
+                } catch (Throwable t) {
+                    log.error("can not write the metrics to " + file + ": " + t.getMessage());
+                }
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+        log.info("writing the pbs metrics to " + file + " every " + interval + " ms");
+    }
+
+    public synchronized void stopDump() {
+        if (dumper != null) {
+            dumper.shutdown();
+            dumper = null;
+        }
+    }
+
+    /**
+     * Write the metrics to a temp file next to the given file and rename it
+     */
+    public void dump(File file) throws IOException {
+        Path target = file.toPath();
+        Path tmp = new File(file.getPath() + ".tmp").toPath();
+        Files.write(tmp, getMetricsText().getBytes(StandardCharsets.UTF_8));
+        try {
+            Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static class CommandStats {
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final AtomicLongArray exits = new AtomicLongArray(ExitPath.values().length);
+    }
+}
@@ -0,0 +1,63 @@
+package edu.iu.gp;
+
+/**
+ * The job runner metrics we publish over JMX, as edu.iu.gp:type=PbsMetrics.
+ * The times are in milliseconds.
+ *
+ * @author lewu@iu.edu
+ */
+public interface PbsMetricsMBean {
+
+    /**
+     * @return the names of the scheduler commands we ran, e.g. qstat, qsub
+     */
+    String[] getCommandNames();
+
+    long getCommandCount();
+
+    /**
+     * @param name a scheduler command, e.g. qstat, or an operation of the
+     * job runner, startJob or getStatus
+     * @param percentile e.g. 99.9
+     */
+    double getLatencyMillis(String name, double percentile);
+
+    long getTimeoutCount();
+
+    long getStderrCount();
+
+    long getNonzeroExitCount();
+
+    long getExceptionCount();
+
+    int getProcessesInFlight();
+
+    long getForkCount();
+
+    long getForksPerMinute();
+
+    long getStatusCacheHitCount();
+
+    long getStatusCacheMissCount();
+
+    double getStatusCacheHitRate();
+
+    int getSubmissionQueueDepth();
+
+    double getSubmissionsPerSecond();
+
+    long getSubmittedCount();
+
+    long getSubmissionFailedCount();
+
+    /**
+     * @return the percentiles of the job phases by queue and by module, see
+     * JobTimeline
+     */
+    String getTimelineReport();
+
+    /**
+     * @return all the metrics in the Prometheus text format
+     */
+    String getMetricsText();
+}
@@ -0,0 +1,369 @@
+package edu.iu.gp;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A single pass parser for the "qstat -f" output.
+ *
+ * The parser reads the output character by character, straight from the
+ * process stream, and builds one QstatRecord per "Job Id:" block. It only
+ * keeps the attributes the job runner needs, the keys are matched exactly
+ * (so "mem" never matches "resources_used.vmem" or "Resource_List.mem"),
+ * and the durations and memory sizes are decoded into longs from the
+ * characters we read, without splitting the output into String arrays.
+ *
+ * Torque wraps long values, e.g. the Variable_List, the continuation lines
+ * start with a tab and are appended to the value of the previous attribute.
+ *
+ * @author lewu@iu.edu
+ */
+public class QstatParser {
+
+    /**
+     * Called for every job in the output
+     */
+    public interface Handler {
+        void onRecord(QstatRecord record);
+    }
+
+    private static final String JOB_ID = "Job Id:";
+
+    private final Handler handler;
+    private final StringBuilder line = new StringBuilder(256);
+    private final StringBuilder key = new StringBuilder(64);
+    private final StringBuilder value = new StringBuilder(256);
+    private boolean pending = false;
+    private QstatRecord.Builder builder;
+
+    private QstatParser(Handler handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * Parse the output and call the handler for every job, the reader is
+     * read until the end but not closed.
+     */
+    public static void parse(Reader in, Handler handler) throws IOException {
+        QstatParser parser = new QstatParser(handler);
+        char[] buf = new char[8192];
+        int n;
+        while ((n = in.read(buf)) != -1) {
+            for (int i = 0; i < n; i++) {
+                parser.accept(buf[i]);
+            }
+        }
+        parser.finish();
+    }
+
+    /**
+     * Parse the output of a whole cluster
+     *
+     * @return the records keyed by the short pbs id
+     */
+    public static Map<String, QstatRecord> parse(CharSequence output) {
+        final Map<String, QstatRecord> records = new HashMap<String, QstatRecord>();
+        QstatParser parser = new QstatParser(new Handler() {
+            @Override
+            public void onRecord(QstatRecord record) {
+                records.put(QstatSnapshot.shortId(record.getJobId()), record);
+            }
+        });
+        for (int i = 0; i < output.length(); i++) {
+            parser.accept(output.charAt(i));
+        }
+        parser.finish();
+        return records;
+    }
+
+    /**
+     * Parse the output of "qstat -f id"
+     *
+     * @return the record or null if there is no job in the output
+     */
+    public static QstatRecord parseSingle(CharSequence output) {
+        final QstatRecord[] result = new QstatRecord[1];
+        QstatParser parser = new QstatParser(new Handler() {
+            @Override
+            public void onRecord(QstatRecord record) {
+                if (result[0] == null) {
+                    result[0] = record;
+                }
+            }
+        });
+        for (int i = 0; i < output.length(); i++) {
+            parser.accept(output.charAt(i));
+        }
+        parser.finish();
+        return result[0];
+    }
+
+    /**
+     * Same as parseSingle(CharSequence), but reading from a stream
+     */
+    public static QstatRecord parseSingle(Reader in) throws IOException {
+        final QstatRecord[] result = new QstatRecord[1];
+        parse(in, new Handler() {
+            @Override
+            public void onRecord(QstatRecord record) {
+                if (result[0] == null) {
+                    result[0] = record;
+                }
+            }
+        });
+        return result[0];
+    }
+
+    private void accept(char c) {
+        if (c == '\n') {
+            endOfLine();
+            line.setLength(0);
+        } else if (c != '\r') {
+            line.append(c);
+        }
+    }
+
+    private void finish() {
+        if (line.length() > 0) {
+            endOfLine();
+            line.setLength(0);
+        }
+        flushAttribute();
+        flushRecord();
+    }
+
+    private void endOfLine() {
+        // a continuation of the previous value
+        if (line.length() > 0 && line.charAt(0) == '\t') {
+            if (pending) {
+                value.append(line, 1, line.length());
+            }
+            return;
+        }
+
+        flushAttribute();
+
+        if (startsWith(line, JOB_ID)) {
+            flushRecord();
+            builder = new QstatRecord.Builder(trimmed(line, JOB_ID.length(), line.length()));
+            return;
+        }
+
+        int idx = indexOf(line, " = ");
+        if (idx < 0 || builder == null) {
+            return;
+        }
+
+        int start = 0;
+        while (start < idx && line.charAt(start) == ' ') {
+            start++;
+        }
+        key.setLength(0);
+        key.append(line, start, idx);
+        value.setLength(0);
+        value.append(line, idx + 3, line.length());
+        pending = true;
+    }
+
+    private void flushAttribute() {
+        if (!pending) {
+            return;
+        }
+        pending = false;
+        if (builder == null) {
+            return;
+        }
+
+        int len = value.length();
+        if (equals(key, "job_state")) {
+            builder.jobState(trimmed(value, 0, len));
+        } else if (equals(key, "Job_Name")) {
+            builder.jobName(trimmed(value, 0, len));
+        } else if (equals(key, "queue")) {
+            builder.queue(trimmed(value, 0, len));
+        } else if (equals(key, "exec_host")) {
+            builder.execHost(trimmed(value, 0, len));
+        } else if (equals(key, "start_time")) {
+            builder.startTime(trimmed(value, 0, len));
+        } else if (equals(key, "qtime")) {
+            builder.qtime(trimmed(value, 0, len));
+        } else if (equals(key, "exit_status")) {
+            long exit = decodeInteger(value, 0, len);
+            if (exit != QstatRecord.UNKNOWN || startsWith(value, "-")) {
+                builder.exitStatus((int) exit);
+            }
+        } else if (equals(key, "resources_used.cput")) {
+            builder.cpuTime(decodeDuration(value, 0, len));
+        } else if (equals(key, "resources_used.walltime")) {
+            builder.walltime(decodeDuration(value, 0, len));
+        } else if (equals(key, "resources_used.mem")) {
+            builder.mem(decodeMemory(value, 0, len));
+        } else if (equals(key, "resources_used.vmem")) {
+            builder.vmem(decodeMemory(value, 0, len));
+        } else if (equals(key, "Resource_List.walltime")) {
+            builder.requestedWalltime(decodeDuration(value, 0, len));
+        } else if (equals(key, "Resource_List.vmem")) {
+            builder.requestedVmem(decodeMemory(value, 0, len));
+        }
+    }
+
+    private void flushRecord() {
+        if (builder != null) {
+            handler.onRecord(builder.build());
+            builder = null;
+        }
+    }
+
+    /**
+     * Decode a pbs duration, e.g. 720:00:00, 01:02:03 or 3600, into seconds
+     *
+     * @return the seconds or QstatRecord.UNKNOWN if it is not a duration
+     */
+    public static long decodeDuration(CharSequence s, int start, int end) {
+        long seconds = 0L;
+        long part = 0L;
+        boolean digits = false;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c >= '0' && c <= '9') {
+                part = part * 10L + (c - '0');
+                digits = true;
+            } else if (c == ':') {
+                seconds = (seconds + part) * 60L;
+                part = 0L;
+            } else if (c != ' ' && c != '\t') {
+                return QstatRecord.UNKNOWN;
+            }
+        }
+        return digits ? seconds + part : QstatRecord.UNKNOWN;
+    }
+
+    /**
+     * Decode a pbs memory size, e.g. 123456kb, 4gb or 1024, into bytes.
+     * The units b, kb, mb, gb, tb and the word units w, kw, mw, gw, tw
+     * (8 bytes per word) are supported.
+     *
+     * @return the bytes or QstatRecord.UNKNOWN if it is not a memory size
+     */
+    public static long decodeMemory(CharSequence s, int start, int end) {
+        int i = start;
+        while (i < end && s.charAt(i) == ' ') {
+            i++;
+        }
+        long size = 0L;
+        boolean digits = false;
+        while (i < end && s.charAt(i) >= '0' && s.charAt(i) <= '9') {
+            size = size * 10L + (s.charAt(i) - '0');
+            digits = true;
+            i++;
+        }
+        if (!digits) {
+            return QstatRecord.UNKNOWN;
+        }
+
+        long multiplier = 1L;
+        if (i < end) {
+            switch (Character.toLowerCase(s.charAt(i))) {
+                case 'k':
+                    multiplier = 1024L;
+                    i++;
+                    break;
+                case 'm':
+                    multiplier = 1024L * 1024L;
+                    i++;
+                    break;
+                case 'g':
+                    multiplier = 1024L * 1024L * 1024L;
+                    i++;
+                    break;
+                case 't':
+                    multiplier = 1024L * 1024L * 1024L * 1024L;
+                    i++;
+                    break;
+                default:
+                    break;
+            }
+        }
+        if (i < end) {
+            char unit = Character.toLowerCase(s.charAt(i));
+            if (unit == 'w') {
+                multiplier *= 8L;
+            } else if (unit != 'b') {
+                return QstatRecord.UNKNOWN;
+            }
+        }
+        return size * multiplier;
+    }
+
+    private static long decodeInteger(CharSequence s, int start, int end) {
+        long v = 0L;
+        boolean negative = false;
+        boolean digits = false;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c >= '0' && c <= '9') {
+                v = v * 10L + (c - '0');
+                digits = true;
+            } else if (c == '-' && !digits) {
+                negative = true;
+            } else if (c != ' ') {
+                return QstatRecord.UNKNOWN;
+            }
+        }
+        if (!digits) {
+            return QstatRecord.UNKNOWN;
+        }
+        return negative ? -v : v;
+    }
+
+    private static String trimmed(CharSequence s, int start, int end) {
+        while (start < end && s.charAt(start) <= ' ') {
+            start++;
+        }
+        while (end > start && s.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        return s.subSequence(start, end).toString();
+    }
+
+    private static boolean equals(CharSequence s, String constant) {
+        if (s.length() != constant.length()) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) != constant.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean startsWith(CharSequence s, String prefix) {
+        if (s.length() < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (s.charAt(i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int indexOf(CharSequence s, String needle) {
+        int last = s.length() - needle.length();
+        outer:
+        for (int i = 0; i <= last; i++) {
+            for (int j = 0; j < needle.length(); j++) {
+                if (s.charAt(i + j) != needle.charAt(j)) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+}
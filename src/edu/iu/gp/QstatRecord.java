@@ -0,0 +1,300 @@
+package edu.iu.gp;
+
+import java.util.Date;
+
+/**
+ * The status of one PBS job as reported by "qstat -f".
+ *
+ * A record is built from one qstat invocation with one pass over its output,
+ * so the job runner can get the job state, the real time resource usage and
+ * the timestamps of a job without running qstat again for every field.
+ *
+ * @author lewu@iu.edu
+ */
+public class QstatRecord {
+
+    /**
+     * The value of the numeric fields which are not in the qstat output
+     */
+    public static final long UNKNOWN = -1L;
+
+    private final String jobId;
+    private final String jobName;
+    private final String jobState;
+    private final String queue;
+    private final String execHost;
+    private final Integer exitStatus;
+    private final String startTime;
+    private final String qtime;
+    private final long cpuTime;
+    private final long walltime;
+    private final long mem;
+    private final long vmem;
+    private final long requestedWalltime;
+    private final long requestedVmem;
+
+    private QstatRecord(Builder b) {
+        this.jobId = b.jobId;
+        this.jobName = b.jobName;
+        this.jobState = b.jobState;
+        this.queue = b.queue;
+        this.execHost = b.execHost;
+        this.exitStatus = b.exitStatus;
+        this.startTime = b.startTime;
+        this.qtime = b.qtime;
+        this.cpuTime = b.cpuTime;
+        this.walltime = b.walltime;
+        this.mem = b.mem;
+        this.vmem = b.vmem;
+        this.requestedWalltime = b.requestedWalltime;
+        this.requestedVmem = b.requestedVmem;
+    }
+
+    /**
+     * A record which only knows the job state, we use it when the job has
+     * already been removed from the pbs server and we got the state from the
+     * epilogue output.
+     */
+    public static QstatRecord forState(String jobId, String jobState) {
+        return new Builder(jobId).jobState(jobState).build();
+    }
+
+    public String getJobId() {
+        return jobId;
+    }
+
+    public String getJobName() {
+        return jobName;
+    }
+
+    /**
+     * @return the pbs job state, e.g. Q, R, E, C, H, S
+     */
+    public String getJobState() {
+        return jobState;
+    }
+
+    public String getQueue() {
+        return queue;
+    }
+
+    public String getExecHost() {
+        return execHost;
+    }
+
+    public Integer getExitStatus() {
+        return exitStatus;
+    }
+
+    /**
+     * @return the start_time as printed by qstat, e.g. "Tue Dec 16 15:33:42 2014"
+     */
+    public String getStartTime() {
+        return startTime;
+    }
+
+    /**
+     * @return the qtime as printed by qstat, e.g. "Tue Dec 16 15:33:42 2014"
+     */
+    public String getQtime() {
+        return qtime;
+    }
+
+    /**
+     * @return the start_time decoded, or null, see TorqueTime
+     */
+    public Date getStartDate() {
+        return TorqueTime.parse(startTime);
+    }
+
+    /**
+     * @return the qtime decoded, or null, see TorqueTime
+     */
+    public Date getQtimeDate() {
+        return TorqueTime.parse(qtime);
+    }
+
+    /**
+     * @return resources_used.cput in seconds or null
+     */
+    public Long getCpuTime() {
+        return known(cpuTime);
+    }
+
+    /**
+     * @return resources_used.walltime in seconds or null
+     */
+    public Long getWalltime() {
+        return known(walltime);
+    }
+
+    /**
+     * @return resources_used.mem in bytes or null
+     */
+    public Long getMem() {
+        return known(mem);
+    }
+
+    /**
+     * @return resources_used.vmem in bytes or null
+     */
+    public Long getVmem() {
+        return known(vmem);
+    }
+
+    /**
+     * @return Resource_List.walltime in seconds or null
+     */
+    public Long getRequestedWalltime() {
+        return known(requestedWalltime);
+    }
+
+    /**
+     * @return Resource_List.vmem in bytes or null
+     */
+    public Long getRequestedVmem() {
+        return known(requestedVmem);
+    }
+
+    private static Long known(long value) {
+        return value == UNKNOWN ? null : value;
+    }
+
+    /**
+     * Convert a pbs duration, e.g. 01:02:03, into seconds
+     *
+     * @return the seconds or null
+     */
+    public static Long parseDuration(String value) {
+        if (value == null) {
+            return null;
+        }
+        return known(QstatParser.decodeDuration(value, 0, value.length()));
+    }
+
+    /**
+     * Convert a pbs memory size, e.g. 123456kb, into bytes
+     *
+     * @return the bytes or null
+     */
+    public static Long parseMemory(String value) {
+        if (value == null) {
+            return null;
+        }
+        return known(QstatParser.decodeMemory(value, 0, value.length()));
+    }
+
+    @Override
+    public String toString() {
+        return "QstatRecord[" + jobId + ", state=" + jobState + "]";
+    }
+
+    public static class Builder {
+
+        private final String jobId;
+        private String jobName;
+        private String jobState;
+        private String queue;
+        private String execHost;
+        private Integer exitStatus;
+        private String startTime;
+        private String qtime;
+        private long cpuTime = UNKNOWN;
+        private long walltime = UNKNOWN;
+        private long mem = UNKNOWN;
+        private long vmem = UNKNOWN;
+        private long requestedWalltime = UNKNOWN;
+        private long requestedVmem = UNKNOWN;
+
+        public Builder(String jobId) {
+            this.jobId = jobId;
+        }
+
+        public Builder jobName(String jobName) {
+            this.jobName = jobName;
+            return this;
+        }
+
+        public Builder jobState(String jobState) {
+            this.jobState = jobState;
+            return this;
+        }
+
+        public Builder queue(String queue) {
+            this.queue = queue;
+            return this;
+        }
+
+        public Builder execHost(String execHost) {
+            this.execHost = execHost;
+            return this;
+        }
+
+        public Builder exitStatus(Integer exitStatus) {
+            this.exitStatus = exitStatus;
+            return this;
+        }
+
+        public Builder startTime(String startTime) {
+            this.startTime = startTime;
+            return this;
+        }
+
+        public Builder qtime(String qtime) {
+            this.qtime = qtime;
+            return this;
+        }
+
+        /**
+         * @param seconds resources_used.cput
+         */
+        public Builder cpuTime(long seconds) {
+            this.cpuTime = seconds;
+            return this;
+        }
+
+        /**
+         * @param seconds resources_used.walltime
+         */
+        public Builder walltime(long seconds) {
+            this.walltime = seconds;
+            return this;
+        }
+
+        /**
+         * @param bytes resources_used.mem
+         */
+        public Builder mem(long bytes) {
+            this.mem = bytes;
+            return this;
+        }
+
+        /**
+         * @param bytes resources_used.vmem
+         */
+        public Builder vmem(long bytes) {
+            this.vmem = bytes;
+            return this;
+        }
+
+        /**
+         * @param seconds Resource_List.walltime
+         */
+        public Builder requestedWalltime(long seconds) {
+            this.requestedWalltime = seconds;
+            return this;
+        }
+
+        /**
+         * @param bytes Resource_List.vmem
+         */
+        public Builder requestedVmem(long bytes) {
+            this.requestedVmem = bytes;
+            return this;
+        }
+
+        public QstatRecord build() {
+            return new QstatRecord(this);
+        }
+    }
+}
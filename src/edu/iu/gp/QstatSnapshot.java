@@ -0,0 +1,237 @@
+package edu.iu.gp;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.log4j.Logger;
+
+/**
+ * A cluster wide view of the "qstat -f" output.
+ *
+ * Instead of running "qstat -f id@host" for every job we track, we run a
+ * single "qstat -f -t @host" per cluster and per polling cycle (-t lists the
+ * elements of the job arrays one by one), and index the
+ * output by the PBS job id. All the status checks during the same cycle will
+ * read from this index as long as it is still fresh.
+ *
+ * When the qstat fails we don't try again for maxAgeMillis, the status
+ * threads would otherwise run the full cluster qstat one after the other
+ * while pbs_server is struggling. Set the system property pbs.qstat.user to
+ * the user the jobs are submitted as to only list the jobs of this user,
+ * "qstat -f -t -u user @host".
+ *
+ * @author lewu@iu.edu
+ */
+public class QstatSnapshot {
+
+    private static final Logger log = Logger.getLogger(QstatSnapshot.class);
+
+    /**
+     * By default, a snapshot is considered fresh for 15 seconds
+     */
+    public static final long DEFAULT_MAX_AGE_MILLIS = 15000L;
+
+    private static final Map<String, QstatSnapshot> snapshots = new ConcurrentHashMap<String, QstatSnapshot>();
+
+    private static volatile long maxAgeMillis = DEFAULT_MAX_AGE_MILLIS;
+
+    private final String clusterName;
+    private volatile Map<String, QstatRecord> jobs = Collections.emptyMap();
+    private volatile long takenAt = 0L;
+    private volatile boolean valid = false;
+    private volatile long failedAt = 0L;
+
+    private QstatSnapshot(String clusterName) {
+        this.clusterName = clusterName;
+    }
+
+    /**
+     * Get the shared snapshot of the given cluster, one instance per pbs.host
+     */
+    public static QstatSnapshot forCluster(String clusterName) {
+        QstatSnapshot snapshot = snapshots.get(clusterName);
+        if (snapshot == null) {
+            synchronized (snapshots) {
+                snapshot = snapshots.get(clusterName);
+                if (snapshot == null) {
+                    snapshot = new QstatSnapshot(clusterName);
+                    snapshots.put(clusterName, snapshot);
+                }
+            }
+        }
+        return snapshot;
+    }
+
+    public static long getMaxAgeMillis() {
+        return maxAgeMillis;
+    }
+
+    /**
+     * @param millis how long a snapshot can be used before we run qstat again,
+     * 0 or less means always run a new qstat
+     */
+    public static void setMaxAgeMillis(long millis) {
+        maxAgeMillis = millis;
+    }
+
+    public String getClusterName() {
+        return clusterName;
+    }
+
+    public boolean isFresh() {
+        return valid && (System.currentTimeMillis() - takenAt) < maxAgeMillis;
+    }
+
+    /**
+     * @return the last qstat failed less than maxAgeMillis ago, we don't run
+     * it again yet
+     */
+    public boolean isBackingOff() {
+        return !valid && failedAt > 0L && (System.currentTimeMillis() - failedAt) < maxAgeMillis;
+    }
+
+    /**
+     * Get the qstat record of the given job from the snapshot, we refresh
+     * the snapshot first if it is too old.
+     *
+     * @param pbsId the pbs job id, e.g. 265066.m1.mason
+     * @return the record of this job, or null if the job is not in the
+     * snapshot (job was submitted after the snapshot was taken, or has already
+     * been removed from the pbs server) or if we can not get the snapshot.
+     */
+    public QstatRecord getJobRecord(String pbsId) {
+        if (!isFresh() && !isBackingOff()) {
+            refresh();
+        }
+        if (!valid) {
+            return null;
+        }
+        return jobs.get(shortId(pbsId));
+    }
+
+    /**
+     * @return all the jobs in the snapshot keyed by the short pbs id, we
+     * refresh the snapshot first if it is too old. The map is empty if we can
+     * not get the snapshot.
+     */
+    public Map<String, QstatRecord> getJobRecords() {
+        Map<String, QstatRecord> records = getValidJobRecords();
+        return records != null ? records : Collections.<String, QstatRecord>emptyMap();
+    }
+
+    /**
+     * Same as getJobRecords(), but tells an empty cluster apart from a failed
+     * qstat
+     *
+     * @return all the jobs in the snapshot keyed by the short pbs id, or null
+     * if we can not get the snapshot
+     */
+    public Map<String, QstatRecord> getValidJobRecords() {
+        if (!isFresh() && !isBackingOff()) {
+            refresh();
+        }
+        // read the map before the flag, a concurrent refresh only replaces
+        // the map after a successful qstat
+        Map<String, QstatRecord> records = jobs;
+        if (!valid) {
+            return null;
+        }
+        return Collections.unmodifiableMap(records);
+    }
+
+    /**
+     * Run one "qstat -f -t @host" and rebuild the index.
+     * Only one thread is doing the refresh, the others will wait and then use
+     * the new snapshot, or give up if it failed.
+     */
+    public synchronized void refresh() {
+
+        // some other thread has refreshed the snapshot, or failed to, while
+        // we were waiting
+        if (isFresh() || isBackingOff()) {
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+        try {
+            // we parse the output while qstat is still writing it, so we
+            // never hold the whole output of a big cluster in memory
+            final Map<String, QstatRecord> index = new HashMap<String, QstatRecord>();
+            SchedulerCommandExecutor.CommandResult result = ClusterThrottle.forCluster(clusterName).execute(false,
+                    qstatCommand(),
+                    SchedulerCommandExecutor.getInstance().getDefaultTimeoutMillis(),
+                    new SchedulerCommandExecutor.StdoutHandler() {
+                        @Override
+                        public void handle(Reader stdout) throws IOException {
+                            QstatParser.parse(stdout, new QstatParser.Handler() {
+                                @Override
+                                public void onRecord(QstatRecord record) {
+                                    index.put(shortId(record.getJobId()), record);
+                                }
+                            });
+                        }
+                    });
+
+            if (!result.getStderr().trim().isEmpty()) {
+                log.error("qstat snapshot of " + clusterName + " failed: " + result.getStderr());
+                failed();
+                return;
+            }
+
+            this.jobs = index;
+            this.takenAt = System.currentTimeMillis();
+            this.valid = true;
+            this.failedAt = 0L;
+            log.debug("qstat snapshot of " + clusterName + ": " + jobs.size() + " jobs in "
+                    + (takenAt - start) + " ms");
+
+        } catch (IOException e) {
+            log.error("can not take qstat snapshot of " + clusterName, e);
+            failed();
+        } catch (InterruptedException e) {
+            // we were interrupted, that says nothing about pbs_server
+            Thread.currentThread().interrupt();
+            valid = false;
+        } catch (ServerOverloadedException e) {
+            log.debug("no qstat snapshot of " + clusterName + ": " + e.getMessage());
+            failed();
+        } catch (PbsException e) {
+            log.error("can not take qstat snapshot of " + clusterName + ": " + e.getMessage());
+            failed();
+        }
+    }
+
+    private void failed() {
+        valid = false;
+        failedAt = System.currentTimeMillis();
+    }
+
+    private String[] qstatCommand() {
+        String user = System.getProperty("pbs.qstat.user");
+        if (user != null && !user.isEmpty()) {
+            return new String[]{"qstat", "-f", "-t", "-u", user, "@" + clusterName};
+        }
+        return new String[]{"qstat", "-f", "-t", "@" + clusterName};
+    }
+
+    /**
+     * Parse the "qstat -f" output of the whole cluster
+     *
+     * @return the records keyed by the short pbs id
+     */
+    public static Map<String, QstatRecord> parse(String output) {
+        return QstatParser.parse(output);
+    }
+
+    /**
+     * qsub returns ids like 265066.m1.mason while qstat may print the full
+     * server name, we only use the sequence number as the key
+     */
+    public static String shortId(String pbsId) {
+        int idx = pbsId.indexOf('.');
+        return idx > 0 ? pbsId.substring(0, idx) : pbsId;
+    }
+}
@@ -0,0 +1,57 @@
+package edu.iu.gp;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts events over the last windowSeconds seconds, one slot per second.
+ *
+ * @author lewu@iu.edu
+ */
+public class RateCounter {
+
+    private final int windowSeconds;
+    private final AtomicLongArray counts;
+    private final AtomicLongArray stamps;
+
+    public RateCounter(int windowSeconds) {
+        this.windowSeconds = windowSeconds;
+        this.counts = new AtomicLongArray(windowSeconds);
+        this.stamps = new AtomicLongArray(windowSeconds);
+    }
+
+    public void increment() {
+        long second = System.currentTimeMillis() / 1000L;
+        int slot = (int) (second % windowSeconds);
+        if (stamps.get(slot) != second) {
+            // the slot was last used a window ago, the first thread of this
+            // second resets it
+            long old = stamps.get(slot);
+            if (old != second && stamps.compareAndSet(slot, old, second)) {
+                counts.set(slot, 0L);
+            }
+        }
+        counts.incrementAndGet(slot);
+    }
+
+    /**
+     * @return the number of events in the last windowSeconds seconds
+     */
+    public long getCount() {
+        long now = System.currentTimeMillis() / 1000L;
+        long count = 0L;
+        for (int i = 0; i < windowSeconds; i++) {
+            if (now - stamps.get(i) < windowSeconds) {
+                count += counts.get(i);
+            }
+        }
+        return count;
+    }
+
+    public double getPerSecond() {
+        return getCount() / (double) windowSeconds;
+    }
+
+    public int getWindowSeconds() {
+        return windowSeconds;
+    }
+}
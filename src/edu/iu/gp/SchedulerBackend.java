@@ -0,0 +1,68 @@
+package edu.iu.gp;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import org.genepattern.drm.DrmJobRecord;
+
+/**
+ * The operations the job runner needs from the batch scheduler.
+ *
+ * CliSchedulerBackend runs the Torque/Moab commands, SimulatedSchedulerBackend
+ * is an in memory PBS cluster we can use to load test the job runner without
+ * a real cluster.
+ *
+ * @author lewu@iu.edu
+ */
+public interface SchedulerBackend {
+
+    /**
+     * Submit the job to the cluster
+     *
+     * @param pbsJob the job with the submission script already built
+     * @return the pbs job id, e.g. 265066.m1.mason
+     */
+    String submit(PbsJob pbsJob) throws IOException, InterruptedException, PbsException;
+
+    /**
+     * Submit compatible jobs as one job array
+     *
+     * @return the pbs job ids of the array elements, in the order of the jobs
+     */
+    List<String> submitArray(JobArray jobArray) throws IOException, InterruptedException, PbsException;
+
+    /**
+     * Get the current status of the job, for a job which is no longer known
+     * by the scheduler we get the C or F state from its epilogue output
+     */
+    QstatRecord status(DrmJobRecord drmJobRecord) throws IOException, InterruptedException, PbsException;
+
+    /**
+     * Get the status of all the jobs of the cluster with one query
+     *
+     * @return the records keyed by the short pbs id (the sequence number)
+     * @throws PbsException if the scheduler could not list the jobs, an
+     * empty map means there are no jobs on the cluster
+     */
+    Map<String, QstatRecord> bulkStatus(String clusterName) throws IOException, InterruptedException, PbsException;
+
+    /**
+     * @param pbsJobId the job id with the cluster name, e.g. 265066.m1.mason@m1.mason.indiana.edu
+     */
+    boolean cancel(String pbsJobId) throws IOException, InterruptedException, PbsException;
+
+    /**
+     * Cancel many jobs at once
+     *
+     * @param pbsJobIds the job ids with the cluster name
+     * @return the error message of every job which could not be cancelled,
+     * keyed by the given id, empty if all the jobs were cancelled
+     */
+    Map<String, String> cancelAll(Collection<String> pbsJobIds) throws IOException, InterruptedException;
+
+    /**
+     * @return the estimated start time message of a queued job
+     */
+    String startEstimate(DrmJobRecord drmJobRecord) throws IOException, InterruptedException, PbsException;
+}
@@ -0,0 +1,441 @@
+package edu.iu.gp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import org.apache.log4j.Logger;
+
+/**
+ * Run the scheduler commands (qsub, qstat, qdel, showstart ...) for the job
+ * runner.
+ *
+ * The stdout and stderr of every command are drained at the same time while
+ * the command is running, so a big "qstat -f" output can not fill the pipe
+ * buffer and block the command. Every command has a timeout, and at most
+ * maxProcesses commands are running at the same time, the others are waiting
+ * in the queue. The result is returned as a CompletableFuture so the caller
+ * can have many commands in flight.
+ *
+ * When a scheduler shell is configured (the system property pbs.shell, e.g.
+ * -Dpbs.shell=/bin/sh), every worker thread keeps a long running
+ * SchedulerShell and sends its commands there, so we don't fork the
+ * GenePattern server JVM for every command.
+ *
+ * @author lewu@iu.edu
+ */
+public class SchedulerCommandExecutor {
+
+    private static final Logger log = Logger.getLogger(SchedulerCommandExecutor.class);
+
+    public static final long DEFAULT_TIMEOUT_MILLIS = 60000L;
+    public static final int DEFAULT_MAX_PROCESSES = 16;
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private static final SchedulerCommandExecutor instance = new SchedulerCommandExecutor(DEFAULT_MAX_PROCESSES, DEFAULT_TIMEOUT_MILLIS);
+
+    /**
+     * The buffers are reused by the threads which are draining the process
+     * streams, so we don't allocate new buffers for every command.
+     */
+    private static final ThreadLocal<byte[]> chunkBuffer = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[CHUNK_SIZE];
+        }
+    };
+
+    private static final ThreadLocal<OutputBuffer> outputBuffer = new ThreadLocal<OutputBuffer>() {
+        @Override
+        protected OutputBuffer initialValue() {
+            return new OutputBuffer();
+        }
+    };
+
+    /**
+     * One scheduler shell per worker thread
+     */
+    private final ThreadLocal<SchedulerShell> shells = new ThreadLocal<SchedulerShell>();
+    private final Set<SchedulerShell> allShells = Collections.newSetFromMap(new ConcurrentHashMap<SchedulerShell, Boolean>());
+    private volatile String shellPath = System.getProperty("pbs.shell");
+
+    private final int maxProcesses;
+    private final long defaultTimeoutMillis;
+    private final ExecutorService commandPool;
+    private final ExecutorService stderrPool;
+    private final ScheduledExecutorService timer;
+
+    public SchedulerCommandExecutor(int maxProcesses, long defaultTimeoutMillis) {
+        this.maxProcesses = maxProcesses;
+        this.defaultTimeoutMillis = defaultTimeoutMillis;
+        this.commandPool = Executors.newFixedThreadPool(maxProcesses, new DaemonThreadFactory("pbs-command"));
+        this.stderrPool = Executors.newFixedThreadPool(maxProcesses, new DaemonThreadFactory("pbs-stderr"));
+        this.timer = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("pbs-command-timer"));
+    }
+
+    /**
+     * @return the executor shared by all the PBS helpers
+     */
+    public static SchedulerCommandExecutor getInstance() {
+        return instance;
+    }
+
+    public int getMaxProcesses() {
+        return maxProcesses;
+    }
+
+    public long getDefaultTimeoutMillis() {
+        return defaultTimeoutMillis;
+    }
+
+    public String getShellPath() {
+        return shellPath;
+    }
+
+    /**
+     * @param shellPath the shell to run the commands in, e.g. /bin/sh, or
+     * null to fork every command from the JVM
+     */
+    public void setShellPath(String shellPath) {
+        this.shellPath = shellPath;
+        closeShells();
+    }
+
+    /**
+     * Stop all the scheduler shells, new shells are started when they are
+     * needed again
+     */
+    public void closeShells() {
+        for (SchedulerShell shell : allShells) {
+            shell.close();
+        }
+        allShells.clear();
+    }
+
+    /**
+     * Reads the stdout of a command while it is running, e.g. to parse a
+     * big "qstat -f" output without keeping it in memory
+     */
+    public interface StdoutHandler {
+        /**
+         * @param stdout the output of the command, the handler does not need
+         * to read it until the end
+         */
+        void handle(Reader stdout) throws IOException;
+    }
+
+    public CompletableFuture<CommandResult> submit(String... command) {
+        return submit(command, defaultTimeoutMillis);
+    }
+
+    /**
+     * Start the command as soon as there is a free slot
+     *
+     * @param command the command and its arguments
+     * @param timeoutMillis we kill the command if it is still running after this time
+     */
+    public CompletableFuture<CommandResult> submit(final String[] command, final long timeoutMillis) {
+        return submit(command, timeoutMillis, null);
+    }
+
+    /**
+     * @param handler reads the stdout while the command is running, the
+     * stdout of the result is empty. If null, the stdout is in the result.
+     */
+    public CompletableFuture<CommandResult> submit(final String[] command, final long timeoutMillis, final StdoutHandler handler) {
+        return submit(command, timeoutMillis, handler, null);
+    }
+
+    /**
+     * @param stdin the input of the command, e.g. the job script for qsub,
+     * or null. The command must read all of it before it writes much
+     * output, as qsub does.
+     */
+    public CompletableFuture<CommandResult> submit(final String[] command, final long timeoutMillis, final StdoutHandler handler,
+            final String stdin) {
+        return CompletableFuture.supplyAsync(new Supplier<CommandResult>() {
+            @Override
+            public CommandResult get() {
+                try {
+                    return run(command, timeoutMillis, handler, stdin);
+                } catch (IOException e) {
+                    throw new CompletionException(e);
+                }
+            }
+        }, commandPool);
+    }
+
+    /**
+     * Run the command and wait for the result.
+     *
+     * @throws PbsException if the command timed out
+     */
+    public CommandResult execute(String... command) throws IOException, InterruptedException, PbsException {
+        return execute(command, defaultTimeoutMillis);
+    }
+
+    public CommandResult execute(String[] command, long timeoutMillis) throws IOException, InterruptedException, PbsException {
+        return execute(command, timeoutMillis, null);
+    }
+
+    public CommandResult execute(String[] command, long timeoutMillis, StdoutHandler handler) throws IOException, InterruptedException, PbsException {
+        return execute(command, timeoutMillis, handler, null);
+    }
+
+    public CommandResult execute(String[] command, long timeoutMillis, StdoutHandler handler, String stdin)
+            throws IOException, InterruptedException, PbsException {
+        CommandResult result;
+        try {
+            result = submit(command, timeoutMillis, handler, stdin).get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof CompletionException && cause.getCause() != null) {
+                cause = cause.getCause();
+            }
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        }
+        if (result.isTimedOut()) {
+            throw new PbsException(command[0] + " timed out after " + timeoutMillis + " ms");
+        }
+        return result;
+    }
+
+    /**
+     * Run the command and record its latency and how it ended in the
+     * PbsMetrics
+     */
+    private CommandResult run(String[] command, long timeoutMillis, StdoutHandler handler, String stdin) throws IOException {
+        PbsMetrics metrics = PbsMetrics.getInstance();
+        PbsMetrics.ExitPath exitPath = PbsMetrics.ExitPath.EXCEPTION;
+        long start = System.nanoTime();
+        metrics.commandStarted();
+        try {
+            CommandResult result = runCommand(command, timeoutMillis, handler, stdin);
+            if (result.isTimedOut()) {
+                exitPath = PbsMetrics.ExitPath.TIMEOUT;
+            } else if (result.getExitCode() != 0) {
+                exitPath = PbsMetrics.ExitPath.NONZERO;
+            } else if (result.hasErrors()) {
+                exitPath = PbsMetrics.ExitPath.STDERR;
+            } else {
+                exitPath = PbsMetrics.ExitPath.OK;
+            }
+            return result;
+        } finally {
+            metrics.commandFinished(command, System.nanoTime() - start, exitPath);
+        }
+    }
+
+    private CommandResult runCommand(final String[] command, final long timeoutMillis, StdoutHandler handler, String stdin) throws IOException {
+
+        if (shellPath != null && !shellPath.isEmpty()) {
+            return getShell().run(command, timeoutMillis, handler, stdin);
+        }
+
+        final long start = System.currentTimeMillis();
+        final Process p = new ProcessBuilder(command).start();
+        PbsMetrics.getInstance().forked();
+
+        // the timeout also covers writing the input, a command which does
+        // not read its input would block us on a full pipe
+        final AtomicBoolean timedOut = new AtomicBoolean(false);
+        ScheduledFuture<?> killer = timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                timedOut.set(true);
+                log.error("killing " + Arrays.toString(command) + " after " + timeoutMillis + " ms");
+                p.destroyForcibly();
+            }
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+
+        try {
+            // we drain stderr on another thread and stdout on this thread
+            Future<String> stderr = stderrPool.submit(new Callable<String>() {
+                @Override
+                public String call() throws IOException {
+                    return drain(p.getErrorStream());
+                }
+            });
+            try (OutputStream in = p.getOutputStream()) {
+                if (stdin != null) {
+                    in.write(stdin.getBytes(StandardCharsets.UTF_8));
+                }
+            } catch (IOException e) {
+                // the command exited (or was killed) without reading its
+                // input, its exit code and stderr tell why
+                log.debug(command[0] + " did not read its input: " + e.getMessage());
+            }
+            String stdout;
+            if (handler == null) {
+                stdout = drain(p.getInputStream());
+            } else {
+                stdout = "";
+                handler.handle(new InputStreamReader(p.getInputStream()));
+                // whatever the handler did not read
+                drain(p.getInputStream());
+            }
+            String err;
+            try {
+                err = stderr.get();
+            } catch (ExecutionException e) {
+                throw new IOException(e.getCause());
+            }
+
+            int exitCode = p.waitFor();
+            return new CommandResult(command, exitCode, stdout, err, timedOut.get(), System.currentTimeMillis() - start);
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            p.destroyForcibly();
+            throw new IOException("interrupted while running " + command[0]);
+        } finally {
+            killer.cancel(false);
+        }
+    }
+
+    private SchedulerShell getShell() throws IOException {
+        SchedulerShell shell = shells.get();
+        if (shell == null || !shell.isAlive()) {
+            if (shell != null) {
+                allShells.remove(shell);
+            }
+            shell = new SchedulerShell(shellPath);
+            shells.set(shell);
+            allShells.add(shell);
+        }
+        return shell;
+    }
+
+    private static String drain(InputStream in) throws IOException {
+        byte[] chunk = chunkBuffer.get();
+        OutputBuffer out = outputBuffer.get();
+        out.reset();
+        try {
+            int n;
+            while ((n = in.read(chunk)) != -1) {
+                out.write(chunk, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+        String value = out.toString();
+        out.shrink();
+        return value;
+    }
+
+    /**
+     * A reusable output buffer, we don't keep very large buffers around after
+     * a big qstat output.
+     */
+    private static class OutputBuffer extends ByteArrayOutputStream {
+
+        private static final int MAX_KEPT_SIZE = 4 * 1024 * 1024;
+
+        OutputBuffer() {
+            super(CHUNK_SIZE);
+        }
+
+        void shrink() {
+            if (buf.length > MAX_KEPT_SIZE) {
+                buf = new byte[CHUNK_SIZE];
+            }
+            reset();
+        }
+    }
+
+    private static class DaemonThreadFactory implements ThreadFactory {
+
+        private final String prefix;
+        private final AtomicInteger count = new AtomicInteger();
+
+        DaemonThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, prefix + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+
+    /**
+     * The outcome of one scheduler command
+     */
+    public static class CommandResult {
+
+        private final String[] command;
+        private final int exitCode;
+        private final String stdout;
+        private final String stderr;
+        private final boolean timedOut;
+        private final long elapsedMillis;
+
+        public CommandResult(String[] command, int exitCode, String stdout, String stderr, boolean timedOut, long elapsedMillis) {
+            this.command = command;
+            this.exitCode = exitCode;
+            this.stdout = stdout;
+            this.stderr = stderr;
+            this.timedOut = timedOut;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        public String[] getCommand() {
+            return command;
+        }
+
+        public int getExitCode() {
+            return exitCode;
+        }
+
+        public String getStdout() {
+            return stdout;
+        }
+
+        public String getStderr() {
+            return stderr;
+        }
+
+        /**
+         * The PBS commands print their errors to stderr, like the old
+         * helpers we treat any output on stderr as an error
+         */
+        public boolean hasErrors() {
+            return stderr != null && !stderr.isEmpty();
+        }
+
+        public boolean isTimedOut() {
+            return timedOut;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+    }
+}
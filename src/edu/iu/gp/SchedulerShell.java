@@ -0,0 +1,296 @@
+package edu.iu.gp;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import org.apache.log4j.Logger;
+
+/**
+ * A long running shell which runs the scheduler commands for the job runner.
+ *
+ * Forking the GenePattern server JVM (several GB of heap) for every qstat is
+ * expensive, so we fork a small shell once and send the commands to its
+ * stdin. After every command the shell prints a marker line with the exit
+ * code to stdout and a marker line to stderr, that is how we know where the
+ * output of one command ends.
+ *
+ * A shell runs one command at a time, the SchedulerCommandExecutor keeps one
+ * shell per worker thread.
+ *
+ * @author lewu@iu.edu
+ */
+public class SchedulerShell {
+
+    private static final Logger log = Logger.getLogger(SchedulerShell.class);
+
+    private static final String STDERR_CLOSED = "\u0000closed";
+
+    private static final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "pbs-shell-watchdog");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    private final String shellPath;
+    private final String marker;
+    private final Process process;
+    private final Writer stdin;
+    private final BufferedReader stdout;
+    private final BlockingQueue<String> stderrFrames = new LinkedBlockingQueue<String>();
+    private volatile boolean alive = true;
+
+    public SchedulerShell(String shellPath) throws IOException {
+        this.shellPath = shellPath;
+        this.marker = "__gp_pbs_" + UUID.randomUUID().toString().replace("-", "") + "__";
+        this.process = new ProcessBuilder(shellPath).start();
+        PbsMetrics.getInstance().forked();
+        this.stdin = new OutputStreamWriter(process.getOutputStream());
+        this.stdout = new BufferedReader(new InputStreamReader(process.getInputStream()));
+
+        Thread stderrReader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readStderr();
+            }
+        }, "pbs-shell-stderr");
+        stderrReader.setDaemon(true);
+        stderrReader.start();
+
+        log.debug("started scheduler shell " + shellPath);
+    }
+
+    public boolean isAlive() {
+        return alive;
+    }
+
+    /**
+     * Run one command in the shell and wait for its output
+     *
+     * @param command the command and its arguments, every argument is quoted
+     * so the shell will not split or expand it
+     * @param timeoutMillis how long we wait for the command, the shell is
+     * killed if the command takes longer
+     * @return the result, which is marked as timed out if the command took too long
+     */
+    public synchronized SchedulerCommandExecutor.CommandResult run(String[] command, long timeoutMillis) throws IOException {
+        return run(command, timeoutMillis, null);
+    }
+
+    /**
+     * @param handler reads the stdout of the command while it is running, or
+     * null to get the stdout in the result
+     */
+    public synchronized SchedulerCommandExecutor.CommandResult run(String[] command, long timeoutMillis,
+            SchedulerCommandExecutor.StdoutHandler handler) throws IOException {
+        return run(command, timeoutMillis, handler, null);
+    }
+
+    /**
+     * @param input the stdin of the command, e.g. the job script for qsub, it
+     * is passed in a here-document, or null
+     */
+    public synchronized SchedulerCommandExecutor.CommandResult run(String[] command, long timeoutMillis,
+            SchedulerCommandExecutor.StdoutHandler handler, String input) throws IOException {
+
+        if (!alive) {
+            throw new IOException("scheduler shell " + shellPath + " is not running");
+        }
+
+        final long start = System.currentTimeMillis();
+
+        StringBuilder line = new StringBuilder();
+        for (String arg : command) {
+            line.append(quote(arg)).append(' ');
+        }
+        // the command must not read the shell's stdin, which is our request
+        // channel, its input is in a quoted here-document, which the shell
+        // does not expand
+        String inputEnd = marker + "_input";
+        line.append(input != null ? "<<'" + inputEnd + "'; " : "</dev/null; ");
+        line.append("printf '\\n%s %d\\n' '").append(marker).append("' $?; ");
+        line.append("printf '\\n%s\\n' '").append(marker).append("' >&2\n");
+        if (input != null) {
+            line.append(input);
+            if (!input.isEmpty() && !input.endsWith("\n")) {
+                line.append('\n');
+            }
+            line.append(inputEnd).append('\n');
+        }
+
+        ScheduledFuture<?> killer = startWatchdog(timeoutMillis);
+        try {
+            stdin.write(line.toString());
+            stdin.flush();
+
+            // read stdout up to the marker line, which carries the exit code
+            FrameReader frame = new FrameReader();
+            String out = "";
+            if (handler != null) {
+                handler.handle(frame);
+            } else {
+                StringBuilder sb = new StringBuilder();
+                char[] buf = new char[8192];
+                int n;
+                while ((n = frame.read(buf, 0, buf.length)) != -1) {
+                    sb.append(buf, 0, n);
+                }
+                out = sb.toString();
+            }
+            // whatever the handler did not read
+            frame.skipToMarker();
+            if (frame.eof) {
+                return timedOutOrDead(command, timeoutMillis, start);
+            }
+            int exitCode = frame.exitCode;
+
+            long left = timeoutMillis - (System.currentTimeMillis() - start);
+            String err = stderrFrames.poll(Math.max(left, 1L), TimeUnit.MILLISECONDS);
+            if (err == null || err == STDERR_CLOSED) {
+                return timedOutOrDead(command, timeoutMillis, start);
+            }
+
+            return new SchedulerCommandExecutor.CommandResult(command, exitCode, out, err, false,
+                    System.currentTimeMillis() - start);
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            close();
+            throw new IOException("interrupted while running " + command[0]);
+        } catch (IOException e) {
+            close();
+            throw e;
+        } finally {
+            killer.cancel(false);
+        }
+    }
+
+    private SchedulerCommandExecutor.CommandResult timedOutOrDead(String[] command, long timeoutMillis, long start) throws IOException {
+        close();
+        long elapsed = System.currentTimeMillis() - start;
+        if (elapsed >= timeoutMillis) {
+            return new SchedulerCommandExecutor.CommandResult(command, -1, "", "", true, elapsed);
+        }
+        throw new IOException("scheduler shell " + shellPath + " exited while running " + command[0]);
+    }
+
+    /**
+     * Kill the shell when the command is running for too long, this also
+     * wakes up the thread which is blocked on reading the stdout.
+     */
+    private ScheduledFuture<?> startWatchdog(final long timeoutMillis) {
+        return watchdog.schedule(new Runnable() {
+            @Override
+            public void run() {
+                log.error("scheduler shell command timed out after " + timeoutMillis + " ms, killing the shell");
+                close();
+            }
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * The stdout of one command, it ends at our marker line
+     */
+    private class FrameReader extends Reader {
+
+        private String current;
+        private int pos;
+        private boolean first = true;
+        private boolean done = false;
+        private boolean eof = false;
+        private int exitCode = -1;
+
+        @Override
+        public int read(char[] cbuf, int off, int len) throws IOException {
+            if (done) {
+                return -1;
+            }
+            while (current == null || pos >= current.length()) {
+                String l = stdout.readLine();
+                if (l == null) {
+                    eof = true;
+                    done = true;
+                    return -1;
+                }
+                if (l.startsWith(marker)) {
+                    exitCode = Integer.parseInt(l.substring(marker.length()).trim());
+                    done = true;
+                    return -1;
+                }
+                // we added a new line before the marker, so we put the line
+                // separators between the lines, not after them
+                current = first ? l : "\n" + l;
+                first = false;
+                pos = 0;
+            }
+            int n = Math.min(len, current.length() - pos);
+            current.getChars(pos, pos + n, cbuf, off);
+            pos += n;
+            return n;
+        }
+
+        void skipToMarker() throws IOException {
+            while (!done) {
+                current = null;
+                read(new char[1], 0, 1);
+            }
+        }
+
+        @Override
+        public void close() {
+            // the shell's stdout stays open for the next command
+        }
+    }
+
+    private void readStderr() {
+        BufferedReader err = new BufferedReader(new InputStreamReader(process.getErrorStream()));
+        StringBuilder frame = new StringBuilder();
+        boolean first = true;
+        try {
+            String l;
+            while ((l = err.readLine()) != null) {
+                if (l.equals(marker)) {
+                    stderrFrames.add(frame.toString());
+                    frame.setLength(0);
+                    first = true;
+                    continue;
+                }
+                if (!first) {
+                    frame.append('\n');
+                }
+                frame.append(l);
+                first = false;
+            }
+        } catch (IOException e) {
+            // the shell is gone
+        } finally {
+            alive = false;
+            stderrFrames.add(STDERR_CLOSED);
+        }
+    }
+
+    public void close() {
+        alive = false;
+        process.destroyForcibly();
+    }
+
+    /**
+     * Wrap the argument in single quotes, each ' is replaced with '\''
+     */
+    static String quote(String arg) {
+        return "'" + arg.replace("'", "'\\''") + "'";
+    }
+}
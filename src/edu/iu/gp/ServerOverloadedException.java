@@ -0,0 +1,30 @@
+package edu.iu.gp;
+
+/**
+ * Thrown instead of running a scheduler command while the circuit breaker of
+ * the cluster is open, see ClusterThrottle.
+ *
+ * @author lewu@iu.edu
+ */
+public class ServerOverloadedException extends PbsException {
+
+    private final String clusterName;
+    private final long retryMillis;
+
+    public ServerOverloadedException(String clusterName, long retryMillis) {
+        super("pbs_server " + clusterName + " is overloaded, retry in " + retryMillis + " ms");
+        this.clusterName = clusterName;
+        this.retryMillis = retryMillis;
+    }
+
+    public String getClusterName() {
+        return clusterName;
+    }
+
+    /**
+     * @return how long until the next command is let through
+     */
+    public long getRetryMillis() {
+        return retryMillis;
+    }
+}
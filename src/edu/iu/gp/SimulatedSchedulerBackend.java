@@ -0,0 +1,532 @@
+package edu.iu.gp;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import org.apache.log4j.Logger;
+import org.genepattern.drm.DrmJobRecord;
+
+/**
+ * An in memory PBS cluster for load testing and benchmarking the job runner.
+ *
+ * The simulator has a number of nodes with a number of slots (processors)
+ * per node. Jobs wait in a FIFO queue (Q) until enough slots are free, run
+ * (R) for a random time, stay a few seconds in the exiting state (E) and then
+ * complete (C). A job which runs longer than its walltime, or is deleted
+ * while running, is killed with the Torque exit code 271. Jobs can be held
+ * (H) and suspended (S).
+ *
+ * When a job completes, the simulator writes the .pbs/.epilogue.pbs file into
+ * the job working directory, in the same format as our epilogue script.
+ * Completed jobs are removed from the simulator after keepCompletedSeconds,
+ * like the keep_completed setting of the pbs_server, so the job runner will
+ * go through the same "Unknown Job Id" path as with a real cluster.
+ *
+ * The simulated clock runs timeScale times faster than the real clock, so a
+ * one hour job takes one minute with a timeScale of 60.
+ *
+ * To use it, set the system property pbs.backend=simulator.
+ *
+ * @author lewu@iu.edu
+ */
+public class SimulatedSchedulerBackend implements SchedulerBackend {
+
+    private static final Logger log = Logger.getLogger(SimulatedSchedulerBackend.class);
+
+    /**
+     * Torque reports this exit code (256 + SIGTERM) for a job killed by the
+     * mom, e.g. for exceeding its walltime or by qdel
+     */
+    public static final int EXIT_KILLED = 271;
+
+    private static final SimulatedSchedulerBackend instance = new SimulatedSchedulerBackend("simulator", 64, 16, 60.0d);
+
+    private final String serverName;
+    private final int nodes;
+    private final int slotsPerNode;
+    private final double timeScale;
+    private final long realStart = System.currentTimeMillis();
+
+    private long minRuntimeSeconds = 60L;
+    private long maxRuntimeSeconds = 3600L;
+    private long exitingSeconds = 5L;
+    private long keepCompletedSeconds = 300L;
+    private double failureRate = 0.0d;
+    private final Random random = new Random(42L);
+
+    private int nextId = 1;
+    private int freeSlots;
+    private final Map<String, SimJob> jobs = new HashMap<String, SimJob>();
+    private final ArrayDeque<SimJob> queued = new ArrayDeque<SimJob>();
+    private final PriorityQueue<SimJob> running = new PriorityQueue<SimJob>(64, new Comparator<SimJob>() {
+        @Override
+        public int compare(SimJob a, SimJob b) {
+            return Long.compare(a.endTime, b.endTime);
+        }
+    });
+    private final PriorityQueue<SimJob> exiting = new PriorityQueue<SimJob>(64, new Comparator<SimJob>() {
+        @Override
+        public int compare(SimJob a, SimJob b) {
+            return Long.compare(a.completionTime, b.completionTime);
+        }
+    });
+    private final PriorityQueue<SimJob> completed = new PriorityQueue<SimJob>(64, new Comparator<SimJob>() {
+        @Override
+        public int compare(SimJob a, SimJob b) {
+            return Long.compare(a.completionTime, b.completionTime);
+        }
+    });
+
+    /**
+     * @param serverName the name used in the job ids, e.g. 12.simulator
+     * @param nodes the number of compute nodes
+     * @param slotsPerNode the number of processors per node
+     * @param timeScale how much faster the simulated clock runs
+     */
+    public SimulatedSchedulerBackend(String serverName, int nodes, int slotsPerNode, double timeScale) {
+        this.serverName = serverName;
+        this.nodes = nodes;
+        this.slotsPerNode = slotsPerNode;
+        this.timeScale = timeScale;
+        this.freeSlots = nodes * slotsPerNode;
+    }
+
+    /**
+     * @return the simulator used by the job runner when pbs.backend=simulator
+     */
+    public static SimulatedSchedulerBackend getInstance() {
+        return instance;
+    }
+
+    /**
+     * @param min the shortest simulated runtime of a job in seconds
+     * @param max the longest simulated runtime of a job in seconds
+     */
+    public synchronized void setRuntimeRange(long min, long max) {
+        this.minRuntimeSeconds = min;
+        this.maxRuntimeSeconds = max;
+    }
+
+    public synchronized void setExitingSeconds(long exitingSeconds) {
+        this.exitingSeconds = exitingSeconds;
+    }
+
+    public synchronized void setKeepCompletedSeconds(long keepCompletedSeconds) {
+        this.keepCompletedSeconds = keepCompletedSeconds;
+    }
+
+    /**
+     * @param failureRate the fraction of jobs which exit with a non-zero exit code
+     */
+    public synchronized void setFailureRate(double failureRate) {
+        this.failureRate = failureRate;
+    }
+
+    public synchronized int getQueuedCount() {
+        advance();
+        return queued.size();
+    }
+
+    public synchronized int getRunningCount() {
+        advance();
+        return running.size();
+    }
+
+    public synchronized int getFreeSlots() {
+        advance();
+        return freeSlots;
+    }
+
+    @Override
+    public synchronized String submit(PbsJob pbsJob) throws IOException, PbsException {
+        advance();
+        return submit(pbsJob, (nextId++) + "." + serverName);
+    }
+
+    /**
+     * The elements get the ids of a Torque job array, e.g. 12[3].simulator,
+     * and are scheduled like separate jobs
+     */
+    @Override
+    public synchronized List<String> submitArray(JobArray jobArray) throws IOException, PbsException {
+        advance();
+        int arrayId = nextId++;
+        List<String> ids = new ArrayList<String>(jobArray.size());
+        for (int i = 0; i < jobArray.size(); i++) {
+            ids.add(submit(jobArray.getJobs().get(i), arrayId + "[" + i + "]." + serverName));
+        }
+        return ids;
+    }
+
+    private String submit(PbsJob pbsJob, String id) throws PbsException {
+
+        int ppn = parseInt(pbsJob.getPpn(), 1);
+        int nodeCount = parseInt(pbsJob.getNodes(), 1);
+        if (ppn > slotsPerNode || nodeCount > nodes) {
+            throw new PbsException("qsub: submit error (Job exceeds queue resource limits MSG=cannot satisfy queue max nodes requirement)");
+        }
+
+        SimJob job = new SimJob();
+        job.id = id;
+        job.name = pbsJob.getName();
+        job.queue = pbsJob.getQueue();
+        job.workDir = pbsJob.getOutputDir();
+        job.slots = ppn * nodeCount;
+        job.ppn = ppn;
+        job.vmem = QstatRecord.parseMemory(pbsJob.getVmem());
+        Long walltime = QstatRecord.parseDuration(pbsJob.getWallTime());
+        job.walltime = walltime == null ? 3600L : walltime;
+        job.runtime = minRuntimeSeconds + (long) (random.nextDouble() * (maxRuntimeSeconds - minRuntimeSeconds));
+        job.exitCode = random.nextDouble() < failureRate ? 1 : 0;
+        job.qtime = now();
+        job.state = "Q";
+
+        jobs.put(job.id, job);
+        queued.add(job);
+        schedule(job.qtime);
+        return job.id;
+    }
+
+    @Override
+    public synchronized QstatRecord status(DrmJobRecord drmJobRecord) throws IOException, InterruptedException, PbsException {
+        String pbsId = PbsJobId.of(drmJobRecord).getPbsId();
+        advance();
+        SimJob job = jobs.get(pbsId);
+        if (job == null) {
+            // the same message as qstat, the job has been removed from the server
+            return PBS.finishedJobRecord(drmJobRecord, pbsId, "qstat: Unknown Job Id Error " + pbsId);
+        }
+        return job.toRecord(now());
+    }
+
+    @Override
+    public synchronized Map<String, QstatRecord> bulkStatus(String clusterName) {
+        advance();
+        long now = now();
+        Map<String, QstatRecord> records = new HashMap<String, QstatRecord>();
+        for (SimJob job : jobs.values()) {
+            records.put(QstatSnapshot.shortId(job.id), job.toRecord(now));
+        }
+        return records;
+    }
+
+    @Override
+    public synchronized boolean cancel(String pbsJobId) throws IOException, PbsException {
+        advance();
+        String pbsId = pbsJobId.split("@")[0];
+        SimJob job = jobs.get(pbsId);
+        if (job == null || "C".equals(job.state)) {
+            throw new PbsException("qdel: Unknown Job Id " + pbsId);
+        }
+        long now = now();
+        if ("Q".equals(job.state) || "H".equals(job.state)) {
+            // a job which never started has no epilogue
+            queued.remove(job);
+            jobs.remove(job.id);
+        } else if ("R".equals(job.state) || "S".equals(job.state)) {
+            running.remove(job);
+            job.exitCode = EXIT_KILLED;
+            startExiting(job, now);
+            schedule(now);
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized Map<String, String> cancelAll(Collection<String> pbsJobIds) throws IOException {
+        Map<String, String> errors = new LinkedHashMap<String, String>();
+        for (String pbsJobId : pbsJobIds) {
+            try {
+                cancel(pbsJobId);
+            } catch (PbsException e) {
+                errors.put(pbsJobId, e.getMessage());
+            }
+        }
+        return errors;
+    }
+
+    @Override
+    public synchronized String startEstimate(DrmJobRecord drmJobRecord) {
+        String pbsId = PbsJobId.of(drmJobRecord).getPbsId();
+        advance();
+        SimJob job = jobs.get(pbsId);
+        if (job == null || !"Q".equals(job.state)) {
+            return "cannot determine start time for job";
+        }
+        // a rough estimate, the position in the queue times the average runtime
+        // divided by the number of jobs which can run at the same time
+        int position = 0;
+        for (SimJob q : queued) {
+            if (q == job) {
+                break;
+            }
+            position++;
+        }
+        long avgRuntime = (minRuntimeSeconds + maxRuntimeSeconds) / 2;
+        long wait = position * avgRuntime * job.slots / Math.max(1, nodes * slotsPerNode);
+        return "Estimated Rsv based start in " + formatDuration(wait) + " on " + formatTime(now() + wait);
+    }
+
+    /**
+     * Put the job on hold, it stays in the queue but will not be started
+     */
+    public synchronized void hold(String pbsId) {
+        advance();
+        SimJob job = jobs.get(pbsId);
+        if (job != null && "Q".equals(job.state)) {
+            job.state = "H";
+        }
+    }
+
+    public synchronized void release(String pbsId) {
+        advance();
+        SimJob job = jobs.get(pbsId);
+        if (job != null && "H".equals(job.state)) {
+            job.state = "Q";
+            schedule(now());
+        }
+    }
+
+    /**
+     * Suspend a running job, its remaining runtime does not change while it
+     * is suspended but it keeps its slots
+     */
+    public synchronized void suspend(String pbsId) {
+        advance();
+        SimJob job = jobs.get(pbsId);
+        if (job != null && "R".equals(job.state)) {
+            running.remove(job);
+            job.state = "S";
+            job.suspendedAt = now();
+        }
+    }
+
+    public synchronized void resume(String pbsId) {
+        advance();
+        SimJob job = jobs.get(pbsId);
+        if (job != null && "S".equals(job.state)) {
+            long now = now();
+            job.endTime += now - job.suspendedAt;
+            job.suspended += now - job.suspendedAt;
+            job.state = "R";
+            running.add(job);
+        }
+    }
+
+    /**
+     * @return the simulated time in seconds since the epoch
+     */
+    private long now() {
+        long realElapsed = System.currentTimeMillis() - realStart;
+        return realStart / 1000L + (long) (realElapsed * timeScale / 1000.0d);
+    }
+
+    /**
+     * Process all the events up to the current simulated time, in time order
+     */
+    private void advance() {
+        long now = now();
+        while (true) {
+            SimJob nextEnd = running.peek();
+            SimJob nextCompletion = exiting.peek();
+            long endTime = nextEnd == null ? Long.MAX_VALUE : nextEnd.endTime;
+            long completionTime = nextCompletion == null ? Long.MAX_VALUE : nextCompletion.completionTime;
+            if (endTime > now && completionTime > now) {
+                break;
+            }
+            if (endTime <= completionTime) {
+                running.poll();
+                startExiting(nextEnd, endTime);
+                schedule(endTime);
+            } else {
+                exiting.poll();
+                complete(nextCompletion);
+            }
+        }
+
+        // the pbs_server forgets the completed jobs after a while
+        while (!completed.isEmpty() && completed.peek().completionTime + keepCompletedSeconds <= now) {
+            jobs.remove(completed.poll().id);
+        }
+    }
+
+    /**
+     * Start the queued jobs in FIFO order while we have enough free slots
+     */
+    private void schedule(long time) {
+        while (true) {
+            SimJob next = null;
+            for (SimJob job : queued) {
+                if ("Q".equals(job.state)) {
+                    next = job;
+                    break;
+                }
+            }
+            if (next == null || next.slots > freeSlots) {
+                return;
+            }
+            queued.remove(next);
+            freeSlots -= next.slots;
+            next.state = "R";
+            next.startTime = time;
+            next.execHost = "node" + (next.id.hashCode() & 0x7fffffff) % nodes + "/0-" + (next.ppn - 1);
+            if (next.runtime > next.walltime) {
+                next.endTime = time + next.walltime;
+                next.exitCode = EXIT_KILLED;
+            } else {
+                next.endTime = time + next.runtime;
+            }
+            running.add(next);
+        }
+    }
+
+    private void startExiting(SimJob job, long time) {
+        freeSlots += job.slots;
+        job.state = "E";
+        job.endTime = time;
+        job.completionTime = time + exitingSeconds;
+        exiting.add(job);
+    }
+
+    private void complete(SimJob job) {
+        job.state = "C";
+        completed.add(job);
+        try {
+            writeEpilogue(job);
+        } catch (IOException e) {
+            log.error("can not write the epilogue output of " + job.id, e);
+        }
+    }
+
+    /**
+     * Write the same output as the epilogue script created by CommandTemplate
+     */
+    private void writeEpilogue(SimJob job) throws IOException {
+        if (job.workDir == null || "N/A".equals(job.workDir)) {
+            return;
+        }
+        File pbsDir = new File(job.workDir, ".pbs");
+        if (!pbsDir.exists()) {
+            pbsDir.mkdirs();
+        }
+        // like the epilogue script, write a temp file and rename it into place
+        File epilogue = new File(pbsDir, EpilogueWatcher.EPILOGUE_OUTPUT);
+        File tmp = new File(pbsDir, EpilogueWatcher.EPILOGUE_OUTPUT + "." + job.id);
+        BufferedWriter out = new BufferedWriter(new FileWriter(tmp));
+        try {
+            out.write("Job ID:" + job.id + "\n");
+            out.write("User_ID:" + System.getProperty("user.name") + "\n");
+            out.write("Group_ID:" + System.getProperty("user.name") + "\n");
+            out.write("Job_Name:" + job.name + "\n");
+            out.write("Session_ID:" + (job.id.hashCode() & 0xffff) + "\n");
+            out.write("Resource_List:neednodes=1:ppn=" + job.ppn + ",nodes=1:ppn=" + job.ppn
+                    + ",walltime=" + formatDuration(job.walltime) + "\n");
+            out.write("Resources_Used:" + resourcesUsed(job, job.endTime) + "\n");
+            out.write("Queue_Name:" + job.queue + "\n");
+            out.write("Account_String:\n");
+            out.write("Job_Exit_Code:" + job.exitCode + "\n");
+        } finally {
+            out.close();
+        }
+        Files.move(tmp.toPath(), epilogue.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private String resourcesUsed(SimJob job, long time) {
+        long elapsed = Math.max(0L, time - job.startTime - job.suspended);
+        long vmemKb = vmemUsed(job) / 1024L;
+        return "cput=" + formatDuration(cpuTime(job, elapsed)) + ",mem=" + (vmemKb / 2L) + "kb,vmem=" + vmemKb
+                + "kb,walltime=" + formatDuration(elapsed);
+    }
+
+    /**
+     * A simulated job keeps 90% of its processors busy
+     */
+    private static long cpuTime(SimJob job, long elapsed) {
+        return (long) (elapsed * job.ppn * 0.9d);
+    }
+
+    /**
+     * A simulated job uses half of the requested vmem, or 1gb
+     */
+    private static long vmemUsed(SimJob job) {
+        return job.vmem == null ? 1024L * 1024L * 1024L : job.vmem / 2L;
+    }
+
+    private static String formatDuration(long seconds) {
+        return String.format("%02d:%02d:%02d", seconds / 3600L, (seconds / 60L) % 60L, seconds % 60L);
+    }
+
+    private static String formatTime(long epochSeconds) {
+        return TorqueTime.format(epochSeconds * 1000L);
+    }
+
+    private static int parseInt(String value, int defaultValue) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    private class SimJob {
+
+        String id;
+        String name;
+        String queue;
+        String workDir;
+        String state;
+        String execHost;
+        int slots;
+        int ppn;
+        Long vmem;
+        long walltime;
+        long runtime;
+        int exitCode;
+        long qtime;
+        long startTime;
+        long endTime;
+        long completionTime;
+        long suspendedAt;
+        long suspended;
+
+        QstatRecord toRecord(long now) {
+            QstatRecord.Builder b = new QstatRecord.Builder(id)
+                    .jobName(name)
+                    .jobState(state)
+                    .queue(queue)
+                    .qtime(formatTime(qtime))
+                    .requestedWalltime(walltime);
+            if (vmem != null) {
+                b.requestedVmem(vmem);
+            }
+            boolean started = !"Q".equals(state) && !"H".equals(state);
+            if (started) {
+                long until = "R".equals(state) ? now : ("S".equals(state) ? suspendedAt : endTime);
+                long elapsed = Math.max(0L, until - startTime - suspended);
+                b.execHost(execHost)
+                        .startTime(formatTime(startTime))
+                        .walltime(elapsed)
+                        .cpuTime(cpuTime(this, elapsed))
+                        .mem(vmemUsed(this) / 2L)
+                        .vmem(vmemUsed(this));
+            }
+            if ("C".equals(state)) {
+                b.exitStatus(exitCode);
+            }
+            return b.build();
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package edu.iu.gp;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.log4j.Logger;
+
+/**
+ * The Moab start time estimates of the queued jobs of a cluster.
+ *
+ * showstart is an expensive Moab query, and we used to run it for every
+ * queued job every time the job was checked. Now the first job which needs
+ * an estimate also gets the estimates of the other queued jobs of this
+ * runner which don't have a fresh one, and the estimates are kept for
+ * maxAgeMillis, so the other queued jobs read theirs from memory in the
+ * same polling cycle.
+ *
+ * Moab has no bulk query for the estimates, so we still run one showstart
+ * per job, with a fixed argv through the ClusterThrottle of the cluster.
+ * Only the jobs this runner has asked an estimate for in the last few
+ * cycles are included, not the other jobs on the cluster, at most maxJobs
+ * of them per call and only while the call is within budgetMillis, the job
+ * which asked goes first. A showstart which fails or times out stops the
+ * call, the jobs left keep their old estimate until the next one.
+ *
+ * Configured with the system properties pbs.startEstimate.maxAgeMillis
+ * (default 60000), pbs.startEstimate.maxJobs (default 20) and
+ * pbs.startEstimate.budgetMillis (default 10000).
+ *
+ * @author lewu@iu.edu
+ */
+public class StartEstimateSnapshot {
+
+    private static final Logger log = Logger.getLogger(StartEstimateSnapshot.class);
+
+    public static final String UNKNOWN_START_TIME = "cannot determine start time for job";
+
+    public static final long DEFAULT_MAX_AGE_MILLIS = 60000L;
+    public static final int DEFAULT_MAX_JOBS = 20;
+    public static final long DEFAULT_BUDGET_MILLIS = 10000L;
+
+    private static final Map<String, StartEstimateSnapshot> snapshots = new ConcurrentHashMap<String, StartEstimateSnapshot>();
+
+    private static volatile long maxAgeMillis = Long.getLong("pbs.startEstimate.maxAgeMillis", DEFAULT_MAX_AGE_MILLIS);
+    private static volatile int maxJobs = Integer.getInteger("pbs.startEstimate.maxJobs", DEFAULT_MAX_JOBS);
+    private static volatile long budgetMillis = Long.getLong("pbs.startEstimate.budgetMillis", DEFAULT_BUDGET_MILLIS);
+
+    private final String clusterName;
+    private final Map<String, Estimate> estimates = new ConcurrentHashMap<String, Estimate>();
+
+    /**
+     * The queued jobs of this runner, the full pbs id and the last time the
+     * job asked for its estimate, keyed by the short pbs id
+     */
+    private final Map<String, QueuedJob> queued = new ConcurrentHashMap<String, QueuedJob>();
+
+    private StartEstimateSnapshot(String clusterName) {
+        this.clusterName = clusterName;
+    }
+
+    /**
+     * Get the shared estimates of the given cluster, one instance per pbs.host
+     */
+    public static StartEstimateSnapshot forCluster(String clusterName) {
+        StartEstimateSnapshot snapshot = snapshots.get(clusterName);
+        if (snapshot == null) {
+            synchronized (snapshots) {
+                snapshot = snapshots.get(clusterName);
+                if (snapshot == null) {
+                    snapshot = new StartEstimateSnapshot(clusterName);
+                    snapshots.put(clusterName, snapshot);
+                }
+            }
+        }
+        return snapshot;
+    }
+
+    public static long getMaxAgeMillis() {
+        return maxAgeMillis;
+    }
+
+    public static void setMaxAgeMillis(long millis) {
+        maxAgeMillis = millis;
+    }
+
+    public static void setMaxJobs(int jobs) {
+        maxJobs = jobs;
+    }
+
+    public static void setBudgetMillis(long millis) {
+        budgetMillis = millis;
+    }
+
+    /**
+     * @param pbsId the pbs job id, e.g. 265066.m1.mason
+     * @return the "... based start in ..." line of showstart, or
+     * UNKNOWN_START_TIME
+     */
+    public String getEstimate(String pbsId) throws IOException, InterruptedException, PbsException {
+        String key = QstatSnapshot.shortId(pbsId);
+        queued.put(key, new QueuedJob(pbsId, System.currentTimeMillis()));
+        Estimate estimate = estimates.get(key);
+        if (estimate == null || !estimate.isFresh()) {
+            refresh(pbsId);
+            estimate = estimates.get(key);
+        }
+        return estimate != null ? estimate.message : UNKNOWN_START_TIME;
+    }
+
+    /**
+     * Forget the estimate of a job which is no longer queued
+     */
+    public void forget(String pbsId) {
+        estimates.remove(QstatSnapshot.shortId(pbsId));
+        queued.remove(QstatSnapshot.shortId(pbsId));
+    }
+
+    /**
+     * Run showstart for the given job and the other queued jobs of this
+     * runner without a fresh estimate. Only one thread runs it, the others
+     * wait and then use the new estimates.
+     */
+    private synchronized void refresh(String pbsId) throws IOException, InterruptedException, PbsException {
+
+        // some other thread got the estimate while we were waiting
+        Estimate estimate = estimates.get(QstatSnapshot.shortId(pbsId));
+        if (estimate != null && estimate.isFresh()) {
+            return;
+        }
+
+        // the job which asked goes first, a job which has not asked for a few
+        // cycles is no longer queued or no longer checked
+        long start = System.currentTimeMillis();
+        Map<String, String> ids = new LinkedHashMap<String, String>();
+        ids.put(QstatSnapshot.shortId(pbsId), pbsId);
+        for (Map.Entry<String, QueuedJob> entry : queued.entrySet()) {
+            if (ids.size() >= maxJobs) {
+                break;
+            }
+            Estimate known = estimates.get(entry.getKey());
+            if (start - entry.getValue().askedAt <= 3 * maxAgeMillis && (known == null || !known.isFresh())) {
+                ids.put(entry.getKey(), entry.getValue().pbsId);
+            }
+        }
+
+        int count = 0;
+        for (Map.Entry<String, String> id : ids.entrySet()) {
+            if (count > 0 && System.currentTimeMillis() - start > budgetMillis) {
+                break;
+            }
+            String message;
+            try {
+                // the errors of showstart are in its stderr, the job has no
+                // estimate until the next call
+                message = PBS.showstart(id.getValue(), clusterName);
+            } catch (IOException e) {
+                if (count == 0) {
+                    throw e;
+                }
+                log.debug("no more start estimates on " + clusterName + ": " + e.getMessage());
+                break;
+            } catch (PbsException e) {
+                // a timeout or an overloaded pbs_server, we don't keep asking
+                if (count == 0) {
+                    throw e;
+                }
+                log.debug("no more start estimates on " + clusterName + ": " + e.getMessage());
+                break;
+            }
+            estimates.put(id.getKey(), new Estimate(message, System.currentTimeMillis()));
+            count++;
+        }
+
+        long now = System.currentTimeMillis();
+        removeExpired(now);
+        log.debug("start estimates of " + count + " of " + ids.size() + " jobs on " + clusterName + " in " + (now - start) + " ms");
+    }
+
+    private void removeExpired(long now) {
+        List<String> expired = new ArrayList<String>();
+        for (Map.Entry<String, Estimate> entry : estimates.entrySet()) {
+            if (now - entry.getValue().takenAt > 10 * maxAgeMillis) {
+                expired.add(entry.getKey());
+            }
+        }
+        estimates.keySet().removeAll(expired);
+        expired.clear();
+        for (Map.Entry<String, QueuedJob> entry : queued.entrySet()) {
+            if (now - entry.getValue().askedAt > 10 * maxAgeMillis) {
+                expired.add(entry.getKey());
+            }
+        }
+        queued.keySet().removeAll(expired);
+    }
+
+    /**
+     * @return the estimates we have, keyed by the short pbs id
+     */
+    public Map<String, String> getEstimates() {
+        Map<String, String> copy = new HashMap<String, String>();
+        for (Map.Entry<String, Estimate> entry : estimates.entrySet()) {
+            copy.put(entry.getKey(), entry.getValue().message);
+        }
+        return Collections.unmodifiableMap(copy);
+    }
+
+    private static class QueuedJob {
+        private final String pbsId;
+        private final long askedAt;
+
+        QueuedJob(String pbsId, long askedAt) {
+            this.pbsId = pbsId;
+            this.askedAt = askedAt;
+        }
+    }
+
+    private static class Estimate {
+        private final String message;
+        private final long takenAt;
+
+        Estimate(String message, long takenAt) {
+            this.message = message;
+            this.takenAt = takenAt;
+        }
+
+        boolean isFresh() {
+            return System.currentTimeMillis() - takenAt < maxAgeMillis;
+        }
+    }
+}
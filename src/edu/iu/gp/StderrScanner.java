@@ -0,0 +1,484 @@
+package edu.iu.gp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import org.apache.log4j.Logger;
+
+/**
+ * Look for error messages in the stderr file of a job.
+ *
+ * The keywords are compiled into a single Aho-Corasick automaton, so we find
+ * any of them in one pass over the bytes of the file, with one table lookup
+ * per byte, instead of searching every line once per keyword. The file is
+ * memory mapped and we stop at the first match. Optionally only the last N
+ * MB of the file are scanned, a module which prints gigabytes to stderr
+ * usually prints its fatal errors at the end.
+ *
+ * For a running job we keep the scan offset and the automaton state of its
+ * stderr file, every status check only scans the bytes appended since the
+ * last check, and the final check when the job is done only scans the rest.
+ *
+ * The keywords are matched ignoring the (ASCII) case. The regular expressions
+ * are compiled once and matched line by line, and only if they are
+ * configured, they are much slower than the keywords.
+ *
+ * The default scanner is configured with the system properties
+ * <pre>
+ *     pbs.stderr.keywords   comma separated keywords, default error,errors,abort,aborted,core dump,exception
+ *     pbs.stderr.regex      a regular expression matched against every line
+ *     pbs.stderr.regex.N    more regular expressions, N = 1, 2, 3 ... up to the first missing one
+ *     pbs.stderr.tailMb     scan only the last N MB of the file, 0 (the default) for the whole file
+ * </pre>
+ *
+ * @author lewu@iu.edu
+ */
+public class StderrScanner {
+
+    private static final Logger log = Logger.getLogger(StderrScanner.class);
+
+    public static final String[] DEFAULT_KEYWORDS = {"error", "errors", "abort", "aborted", "core dump", "exception"};
+
+    /**
+     * We map the file in chunks of this size
+     */
+    private static final long CHUNK_SIZE = 256L * 1024L * 1024L;
+
+    private static final int BLOCK_SIZE = 64 * 1024;
+
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+
+    /**
+     * The number of stderr files we keep the scan state for
+     */
+    public static final int MAX_TRACKED_FILES = 10000;
+
+    private static volatile StderrScanner defaultScanner;
+
+    private final String[] keywords;
+    private final Pattern[] patterns;
+    private final long tailBytes;
+
+    /**
+     * The automaton, next[state * 256 + byte] is the next state, the
+     * failure links are already folded into the table
+     */
+    private final int[] next;
+    /**
+     * The keyword which ends in a state, or null
+     */
+    private final String[] output;
+
+    /**
+     * The scan state of the stderr files of the running jobs
+     */
+    private final Map<String, Progress> progress = new LinkedHashMap<String, Progress>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Progress> eldest) {
+            return size() > MAX_TRACKED_FILES;
+        }
+    };
+
+    /**
+     * @param keywords matched ignoring the case
+     * @param regexes matched against every line, may be empty
+     * @param tailBytes scan only the last tailBytes of the file, 0 or less
+     * for the whole file
+     */
+    public StderrScanner(String[] keywords, String[] regexes, long tailBytes) {
+        this(keywords, compile(regexes), tailBytes);
+    }
+
+    /**
+     * @param keywords matched ignoring the case
+     * @param patterns matched against every line, may be empty
+     * @param tailBytes scan only the last tailBytes of the file, 0 or less
+     * for the whole file
+     */
+    public StderrScanner(String[] keywords, Pattern[] patterns, long tailBytes) {
+        this.keywords = keywords.clone();
+        this.patterns = patterns.clone();
+        this.tailBytes = tailBytes;
+
+        // the trie
+        List<int[]> gotos = new ArrayList<int[]>();
+        List<String> outs = new ArrayList<String>();
+        gotos.add(newState());
+        outs.add(null);
+        for (String keyword : this.keywords) {
+            if (keyword.isEmpty()) {
+                continue;
+            }
+            int state = 0;
+            for (byte b : keyword.getBytes(StandardCharsets.UTF_8)) {
+                int c = lower(b);
+                if (gotos.get(state)[c] < 0) {
+                    gotos.get(state)[c] = gotos.size();
+                    gotos.add(newState());
+                    outs.add(null);
+                }
+                state = gotos.get(state)[c];
+            }
+            outs.set(state, keyword);
+        }
+
+        // breadth first, fold the failure links into the transitions
+        int states = gotos.size();
+        int[] fail = new int[states];
+        int[] queue = new int[states];
+        int head = 0;
+        int tail = 0;
+        next = new int[states * 256];
+        output = new String[states];
+        output[0] = outs.get(0);
+        for (int c = 0; c < 256; c++) {
+            int s = gotos.get(0)[c];
+            if (s < 0) {
+                next[c] = 0;
+            } else {
+                next[c] = s;
+                fail[s] = 0;
+                queue[tail++] = s;
+            }
+        }
+        while (head < tail) {
+            int state = queue[head++];
+            if (output[state] == null) {
+                output[state] = outs.get(state) != null ? outs.get(state) : output[fail[state]];
+            }
+            for (int c = 0; c < 256; c++) {
+                int s = gotos.get(state)[c];
+                if (s < 0) {
+                    next[state * 256 + c] = next[fail[state] * 256 + c];
+                } else {
+                    next[state * 256 + c] = s;
+                    fail[s] = next[fail[state] * 256 + c];
+                    queue[tail++] = s;
+                }
+            }
+        }
+        // the upper case letters go where the lower case letters go
+        for (int state = 0; state < states; state++) {
+            for (int c = 'A'; c <= 'Z'; c++) {
+                next[state * 256 + c] = next[state * 256 + c + ('a' - 'A')];
+            }
+        }
+    }
+
+    /**
+     * @return the scanner configured with the system properties
+     */
+    public static StderrScanner getDefault() {
+        StderrScanner scanner = defaultScanner;
+        if (scanner == null) {
+            scanner = fromSystemProperties();
+            defaultScanner = scanner;
+        }
+        return scanner;
+    }
+
+    public static void setDefault(StderrScanner scanner) {
+        defaultScanner = scanner;
+    }
+
+    private static StderrScanner fromSystemProperties() {
+        String[] keywords = DEFAULT_KEYWORDS;
+        String value = System.getProperty("pbs.stderr.keywords");
+        if (value != null && !value.trim().isEmpty()) {
+            keywords = value.split(",");
+            for (int i = 0; i < keywords.length; i++) {
+                keywords[i] = keywords[i].trim();
+            }
+        }
+        List<Pattern> regexes = new ArrayList<Pattern>();
+        addRegex(regexes, "pbs.stderr.regex");
+        for (int n = 1; System.getProperty("pbs.stderr.regex." + n) != null; n++) {
+            addRegex(regexes, "pbs.stderr.regex." + n);
+        }
+        long tailMb = Long.getLong("pbs.stderr.tailMb", 0L);
+        log.debug("stderr keywords " + Arrays.toString(keywords) + ", regex " + regexes + ", tail " + tailMb + " MB");
+        return new StderrScanner(keywords, regexes.toArray(new Pattern[regexes.size()]), tailMb * 1024L * 1024L);
+    }
+
+    /**
+     * Add the regular expression of the property, a bad one is logged and
+     * left out, so it does not fail the status checks
+     */
+    private static void addRegex(List<Pattern> regexes, String property) {
+        String regex = System.getProperty(property);
+        if (regex == null || regex.isEmpty()) {
+            return;
+        }
+        try {
+            regexes.add(Pattern.compile(regex));
+        } catch (PatternSyntaxException e) {
+            log.error("invalid " + property + ": " + e.getMessage());
+        }
+    }
+
+    private static Pattern[] compile(String[] regexes) {
+        Pattern[] patterns = new Pattern[regexes.length];
+        for (int i = 0; i < regexes.length; i++) {
+            patterns[i] = Pattern.compile(regexes[i]);
+        }
+        return patterns;
+    }
+
+    public long getTailBytes() {
+        return tailBytes;
+    }
+
+    /**
+     * @return true if the file contains one of the keywords or matches one of
+     * the regular expressions
+     */
+    public boolean hasErrors(File file) throws IOException {
+        return findError(file) != null;
+    }
+
+    /**
+     * @return the first keyword or regular expression we found in the file,
+     * or null if there is none
+     */
+    public String findError(File file) throws IOException {
+        Progress p = new Progress();
+        scan(file, p, true);
+        return p.error;
+    }
+
+    /**
+     * Scan the bytes appended to the stderr file of a running job since the
+     * last call. The scan offset and the automaton state are kept per file,
+     * so a keyword split across two calls is still found.
+     *
+     * @return the first error found so far in the file, or null
+     */
+    public String scanAppended(File file) throws IOException {
+        Progress p = progressFor(file);
+        synchronized (p) {
+            if (p.error == null && !p.finished) {
+                scan(file, p, false);
+            }
+            return p.error;
+        }
+    }
+
+    /**
+     * The final check of the stderr file of a finished job, only the bytes
+     * we have not scanned yet are read. The result is kept until forget() is
+     * called, so checking the same job again does not read the file again.
+     *
+     * @return the first error in the file, or null
+     */
+    public String finish(File file) throws IOException {
+        Progress p = progressFor(file);
+        synchronized (p) {
+            if (!p.finished) {
+                if (p.error == null) {
+                    scan(file, p, true);
+                }
+                p.finished = true;
+            }
+            return p.error;
+        }
+    }
+
+    /**
+     * Drop the scan state of a file, we call it after the final status of
+     * the job has been reported
+     */
+    public void forget(File file) {
+        synchronized (progress) {
+            progress.remove(file.getAbsolutePath());
+        }
+    }
+
+    private Progress progressFor(File file) {
+        String key = file.getAbsolutePath();
+        synchronized (progress) {
+            Progress p = progress.get(key);
+            if (p == null) {
+                p = new Progress();
+                progress.put(key, p);
+            }
+            return p;
+        }
+    }
+
+    /**
+     * Scan from the offset of the progress to the end of the file
+     *
+     * @param last true if the file is complete, the last line is matched
+     * even if it does not end with a new line
+     */
+    private void scan(File file, Progress p, boolean last) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            if (size < p.offset) {
+                // the file was truncated or replaced, start again
+                p.reset();
+            }
+            long start = p.offset;
+            if (tailBytes > 0 && size - start > tailBytes) {
+                start = size - tailBytes;
+                p.state = 0;
+                if (p.line != null) {
+                    p.line.length = 0;
+                }
+                // we skip the first partial line of the tail for the regular expressions
+                p.skipLine = true;
+            }
+
+            int state = p.state;
+            byte[] block = new byte[BLOCK_SIZE];
+            if (p.line == null && patterns.length > 0) {
+                p.line = new LineBuffer();
+            }
+            LineBuffer line = p.line;
+
+            for (long pos = start; pos < size; pos += CHUNK_SIZE) {
+                long len = Math.min(CHUNK_SIZE, size - pos);
+                MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, pos, len);
+                long blockStart = pos;
+                while (buf.hasRemaining()) {
+                    // copying a block out of the mapping is faster than buf.get(i)
+                    int n = Math.min(block.length, buf.remaining());
+                    buf.get(block, 0, n);
+                    for (int i = 0; i < n; i++) {
+                        byte b = block[i];
+                        state = next[(state << 8) | (b & 0xff)];
+                        if (output[state] != null) {
+                            p.found(output[state], blockStart + i + 1, state);
+                            return;
+                        }
+                        if (line != null) {
+                            if (b == '\n') {
+                                if (!p.skipLine) {
+                                    String matched = matchLine(line);
+                                    if (matched != null) {
+                                        p.found(matched, blockStart + i + 1, state);
+                                        return;
+                                    }
+                                }
+                                p.skipLine = false;
+                                line.length = 0;
+                            } else {
+                                line.append(b);
+                            }
+                        }
+                    }
+                    blockStart += n;
+                }
+            }
+            p.offset = size;
+            p.state = state;
+            if (last && line != null && !p.skipLine && line.length > 0) {
+                p.error = matchLine(line);
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    private String matchLine(LineBuffer line) {
+        for (Pattern pattern : patterns) {
+            Matcher m = pattern.matcher(line);
+            if (m.find()) {
+                return pattern.pattern();
+            }
+        }
+        return null;
+    }
+
+    private static int[] newState() {
+        int[] state = new int[256];
+        Arrays.fill(state, -1);
+        return state;
+    }
+
+    private static int lower(byte b) {
+        int c = b & 0xff;
+        return (c >= 'A' && c <= 'Z') ? c + ('a' - 'A') : c;
+    }
+
+    /**
+     * How far we have scanned a file
+     */
+    private static class Progress {
+
+        private long offset = 0L;
+        private int state = 0;
+        private LineBuffer line;
+        private boolean skipLine = false;
+        private boolean finished = false;
+        private String error;
+
+        void found(String error, long offset, int state) {
+            this.error = error;
+            this.offset = offset;
+            this.state = state;
+        }
+
+        void reset() {
+            offset = 0L;
+            state = 0;
+            skipLine = false;
+            if (line != null) {
+                line.length = 0;
+            }
+        }
+    }
+
+    /**
+     * The bytes of the current line, seen as latin-1 characters by the
+     * regular expressions. Very long lines are cut.
+     */
+    private static class LineBuffer implements CharSequence {
+
+        private byte[] bytes = new byte[1024];
+        private int length = 0;
+
+        void append(byte b) {
+            if (length == bytes.length) {
+                if (length >= MAX_LINE_LENGTH) {
+                    return;
+                }
+                bytes = Arrays.copyOf(bytes, length * 2);
+            }
+            bytes[length++] = b;
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return (char) (bytes[index] & 0xff);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return new String(bytes, start, end - start, StandardCharsets.ISO_8859_1);
+        }
+
+        @Override
+        public String toString() {
+            return new String(bytes, 0, length, StandardCharsets.ISO_8859_1);
+        }
+    }
+}
@@ -0,0 +1,339 @@
+package edu.iu.gp;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import org.apache.log4j.Logger;
+import org.genepattern.drm.DrmJobRecord;
+
+/**
+ * The job submission pipeline of the job runner.
+ *
+ * A submission goes through three stages: the PbsJob is created, which
+ * writes the .command.pbs and the epilogue script, on the script pool; it
+ * is submitted on the qsub pool, at most maxPerSecond qsub calls per second;
+ * and the pbs job id is returned through a CompletableFuture.
+ *
+ * Compatible jobs can be collected into job arrays between the first and
+ * the second stage, see JobArrayBatcher.
+ *
+ * At most queueDepth submissions are in the pipeline, a caller which submits
+ * more waits until one of them is done, so a slow pbs_server pushes back on
+ * the GenePattern dispatcher instead of piling up threads and processes.
+ *
+ * The pipeline is configured with the system properties
+ * <pre>
+ *     pbs.submit.queueDepth      submissions in the pipeline, default 1000
+ *     pbs.submit.scriptThreads   threads which write the job scripts, default 4
+ *     pbs.submit.concurrency     qsub calls at the same time, default 4
+ *     pbs.submit.maxPerSecond    qsub calls per second, default 0 (no limit)
+ * </pre>
+ *
+ * @author lewu@iu.edu
+ */
+public class SubmissionPipeline {
+
+    private static final Logger log = Logger.getLogger(SubmissionPipeline.class);
+
+    public static final int DEFAULT_QUEUE_DEPTH = 1000;
+    public static final int DEFAULT_SCRIPT_THREADS = 4;
+    public static final int DEFAULT_CONCURRENCY = 4;
+
+    /**
+     * The submission rate is measured over this many seconds
+     */
+    private static final int RATE_WINDOW_SECONDS = 60;
+
+    private final SchedulerBackend backend;
+    private final JobArrayBatcher arrayBatcher;
+    private final int queueDepth;
+    private final int concurrency;
+    private final double maxPerSecond;
+    private final Semaphore slots;
+    private final Semaphore qsubSlots;
+    private final ExecutorService scriptPool;
+    private final ExecutorService qsubPool;
+
+    private final Object pace = new Object();
+    private long nextQsubNanos = System.nanoTime();
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final RateCounter rate = new RateCounter(RATE_WINDOW_SECONDS);
+
+    /**
+     * @param arrayWindowMillis collect the compatible jobs for this long and
+     * submit them as a job array, 0 or less to submit every job on its own
+     * @param maxPerSecond the qsub rate limit, 0 or less for no limit
+     */
+    public SubmissionPipeline(SchedulerBackend backend, int queueDepth, int scriptThreads, int concurrency,
+            double maxPerSecond, long arrayWindowMillis, int arrayMaxSize) {
+        this.backend = new ThrottledBackend(backend);
+        this.arrayBatcher = arrayWindowMillis > 0
+                ? new JobArrayBatcher(this.backend, arrayWindowMillis, arrayMaxSize, inFlight) : null;
+        this.queueDepth = queueDepth;
+        this.concurrency = concurrency;
+        this.maxPerSecond = maxPerSecond;
+        this.slots = new Semaphore(queueDepth, true);
+        this.qsubSlots = new Semaphore(concurrency, true);
+        this.scriptPool = Executors.newFixedThreadPool(scriptThreads, new NamedThreadFactory("pbs-submit-script"));
+        // the jobs which joined a job array batch wait on their thread for
+        // the window, the other batches must not wait behind them, the qsub
+        // calls themselves are limited by qsubSlots
+        this.qsubPool = arrayBatcher != null
+                ? Executors.newCachedThreadPool(new NamedThreadFactory("pbs-submit-qsub"))
+                : Executors.newFixedThreadPool(concurrency, new NamedThreadFactory("pbs-submit-qsub"));
+    }
+
+    /**
+     * The pipeline configured with the pbs.submit.* and the pbs.array.*
+     * system properties, see JobArrayBatcher for the job arrays
+     */
+    public static SubmissionPipeline fromSystemProperties(SchedulerBackend backend) {
+        int queueDepth = Integer.getInteger("pbs.submit.queueDepth", DEFAULT_QUEUE_DEPTH);
+        int scriptThreads = Integer.getInteger("pbs.submit.scriptThreads", DEFAULT_SCRIPT_THREADS);
+        int concurrency = Integer.getInteger("pbs.submit.concurrency", DEFAULT_CONCURRENCY);
+        double maxPerSecond = 0.0;
+        String rate = System.getProperty("pbs.submit.maxPerSecond");
+        if (rate != null && !rate.trim().isEmpty()) {
+            try {
+                maxPerSecond = Double.parseDouble(rate.trim());
+            } catch (NumberFormatException e) {
+                log.error("invalid pbs.submit.maxPerSecond: " + rate);
+            }
+        }
+        long arrayWindow = Long.getLong("pbs.array.windowMillis", 0L);
+        int arrayMaxSize = Integer.getInteger("pbs.array.maxSize", JobArrayBatcher.DEFAULT_MAX_SIZE);
+        if (arrayWindow > 0) {
+            log.info("submitting compatible jobs as job arrays, window " + arrayWindow + " ms, at most " + arrayMaxSize + " jobs");
+        }
+        return new SubmissionPipeline(backend, queueDepth, scriptThreads, concurrency, maxPerSecond, arrayWindow, arrayMaxSize);
+    }
+
+    /**
+     * Put a job into the pipeline, this waits while the pipeline is full.
+     *
+     * @param createJob creates the PbsJob with its submission script
+     * @return the pbs job id
+     */
+    public CompletableFuture<String> submit(final Callable<PbsJob> createJob) throws InterruptedException {
+        slots.acquire();
+        inFlight.incrementAndGet();
+
+        CompletableFuture<String> result;
+        try {
+            result = CompletableFuture.supplyAsync(new Supplier<PbsJob>() {
+                @Override
+                public PbsJob get() {
+                    try {
+                        return createJob.call();
+                    } catch (Exception e) {
+                        throw new CompletionException(e);
+                    }
+                }
+            }, scriptPool).thenApplyAsync(new Function<PbsJob, String>() {
+                @Override
+                public String apply(PbsJob pbsJob) {
+                    try {
+                        if (arrayBatcher != null) {
+                            return arrayBatcher.submit(pbsJob);
+                        }
+                        return backend.submit(pbsJob);
+                    } catch (Exception e) {
+                        throw new CompletionException(e);
+                    }
+                }
+            }, qsubPool);
+        } catch (RuntimeException e) {
+            // the pool is shut down
+            inFlight.decrementAndGet();
+            slots.release();
+            throw e;
+        }
+
+        return result.whenComplete(new BiConsumer<String, Throwable>() {
+            @Override
+            public void accept(String pbsJobId, Throwable error) {
+                inFlight.decrementAndGet();
+                slots.release();
+                if (error != null) {
+                    failed.incrementAndGet();
+                } else {
+                    submitted.incrementAndGet();
+                    rate.increment();
+                }
+            }
+        });
+    }
+
+    /**
+     * Wait for our turn when there is a rate limit, the qsub calls are
+     * spaced 1 / maxPerSecond seconds apart
+     */
+    private void pace() throws InterruptedException {
+        if (maxPerSecond <= 0) {
+            return;
+        }
+        long interval = (long) (TimeUnit.SECONDS.toNanos(1) / maxPerSecond);
+        long wait;
+        synchronized (pace) {
+            long now = System.nanoTime();
+            if (nextQsubNanos < now) {
+                nextQsubNanos = now;
+            }
+            wait = nextQsubNanos - now;
+            nextQsubNanos += interval;
+        }
+        if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+
+    /**
+     * @return the number of jobs submitted per second over the last minute
+     */
+    public double getSubmissionsPerSecond() {
+        return rate.getPerSecond();
+    }
+
+    /**
+     * @return the number of submissions in the pipeline
+     */
+    public int getQueueDepth() {
+        return inFlight.get();
+    }
+
+    public int getMaxQueueDepth() {
+        return queueDepth;
+    }
+
+    public int getConcurrency() {
+        return concurrency;
+    }
+
+    public double getMaxPerSecond() {
+        return maxPerSecond;
+    }
+
+    public long getSubmittedCount() {
+        return submitted.get();
+    }
+
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    public void shutdown() {
+        scriptPool.shutdown();
+        qsubPool.shutdown();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("submission pipeline: depth %d/%d, %.2f submissions/s, %d submitted, %d failed",
+                getQueueDepth(), queueDepth, getSubmissionsPerSecond(), getSubmittedCount(), getFailedCount());
+    }
+
+    /**
+     * Unwrap the error of a failed submission
+     */
+    static Throwable cause(Throwable t) {
+        while ((t instanceof CompletionException || t instanceof java.util.concurrent.ExecutionException)
+                && t.getCause() != null) {
+            t = t.getCause();
+        }
+        return t;
+    }
+
+    /**
+     * The backend the pipeline and the array batcher submit to, every qsub
+     * waits for a free slot and for the rate limit
+     */
+    private class ThrottledBackend implements SchedulerBackend {
+
+        private final SchedulerBackend delegate;
+
+        ThrottledBackend(SchedulerBackend delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public String submit(PbsJob pbsJob) throws IOException, InterruptedException, PbsException {
+            qsubSlots.acquire();
+            try {
+                pace();
+                return delegate.submit(pbsJob);
+            } finally {
+                qsubSlots.release();
+            }
+        }
+
+        @Override
+        public List<String> submitArray(JobArray jobArray) throws IOException, InterruptedException, PbsException {
+            qsubSlots.acquire();
+            try {
+                pace();
+                return delegate.submitArray(jobArray);
+            } finally {
+                qsubSlots.release();
+            }
+        }
+
+        @Override
+        public QstatRecord status(DrmJobRecord drmJobRecord) throws IOException, InterruptedException, PbsException {
+            return delegate.status(drmJobRecord);
+        }
+
+        @Override
+        public Map<String, QstatRecord> bulkStatus(String clusterName) throws IOException, InterruptedException, PbsException {
+            return delegate.bulkStatus(clusterName);
+        }
+
+        @Override
+        public boolean cancel(String pbsJobId) throws IOException, InterruptedException, PbsException {
+            return delegate.cancel(pbsJobId);
+        }
+
+        @Override
+        public Map<String, String> cancelAll(Collection<String> pbsJobIds) throws IOException, InterruptedException {
+            return delegate.cancelAll(pbsJobIds);
+        }
+
+        @Override
+        public String startEstimate(DrmJobRecord drmJobRecord) throws IOException, InterruptedException, PbsException {
+            return delegate.startEstimate(drmJobRecord);
+        }
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+
+        private final String prefix;
+        private final AtomicInteger count = new AtomicInteger();
+
+        NamedThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, prefix + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
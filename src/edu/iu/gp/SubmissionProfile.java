@@ -0,0 +1,172 @@
+package edu.iu.gp;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.genepattern.drm.DrmJobSubmission;
+import org.genepattern.drm.Memory;
+import org.genepattern.server.config.GpConfig;
+import org.genepattern.server.config.GpContext;
+
+/**
+ * The PBS settings the GenePattern config gives to the jobs of a module,
+ * user and queue: the job.javaXmxMin and job.javaXmxPad memory, the memory
+ * request and its vmem, the walltime, ppn, queue, pbs.host and pbs.cput.
+ *
+ * Every new PbsJob used to walk the config for these, although they are
+ * the same for all the jobs of a module and user. The profiles are kept in
+ * a bounded LRU map keyed by the module lsid, the user and the queue, and
+ * by the memory, walltime and cpu count of the submission, which a user
+ * can change for a single job. The map is cleared when the server reloads
+ * its config, which gives the jobs a new GpConfig instance.
+ *
+ * @author lewu@iu.edu
+ */
+public final class SubmissionProfile {
+
+    private static final int MAX_CACHED_PROFILES = 1024;
+
+    private static final Map<String, SubmissionProfile> profiles = Collections.synchronizedMap(
+            new LinkedHashMap<String, SubmissionProfile>(64, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, SubmissionProfile> eldest) {
+                    return size() > MAX_CACHED_PROFILES;
+                }
+            });
+
+    /**
+     * The config the cached profiles were read from
+     */
+    private static GpConfig config;
+
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+
+    private final Memory javaXmxMin;
+    private final Memory javaXmxPad;
+    private final Memory memory;
+    private final String vmem;
+    private final String wallTime;
+    private final String queue;
+    private final String ppn;
+    private final String hostName;
+    private final String cpuTime;
+
+    private SubmissionProfile(DrmJobSubmission drmJobSubmission) {
+        GpConfig gpConfig = drmJobSubmission.getGpConfig();
+        this.javaXmxMin = gpConfig.getGPMemoryProperty(drmJobSubmission.getJobContext(), "job.javaXmxMin");
+        this.javaXmxPad = gpConfig.getGPMemoryProperty(drmJobSubmission.getJobContext(), "job.javaXmxPad");
+        this.memory = drmJobSubmission.getMemory();
+        this.vmem = memory != null ? vmem(memory) : null;
+        this.wallTime = drmJobSubmission.getWalltime() != null ? drmJobSubmission.getWalltime().toString() : null;
+        this.queue = drmJobSubmission.getQueue() != null ? drmJobSubmission.getQueue().toString() : null;
+        this.ppn = drmJobSubmission.getCpuCount() != null ? drmJobSubmission.getCpuCount().toString() : null;
+        this.hostName = drmJobSubmission.getProperty("pbs.host");
+        this.cpuTime = drmJobSubmission.getProperty("pbs.cput");
+    }
+
+    /**
+     * @return the profile of the job, read from the config the first time
+     */
+    public static SubmissionProfile forSubmission(DrmJobSubmission drmJobSubmission) {
+        String key = key(drmJobSubmission);
+        synchronized (profiles) {
+            if (config != drmJobSubmission.getGpConfig()) {
+                // the config was reloaded
+                profiles.clear();
+                config = drmJobSubmission.getGpConfig();
+            }
+            SubmissionProfile profile = profiles.get(key);
+            if (profile != null) {
+                hits.incrementAndGet();
+                return profile;
+            }
+        }
+        misses.incrementAndGet();
+        SubmissionProfile profile = new SubmissionProfile(drmJobSubmission);
+        synchronized (profiles) {
+            if (config == drmJobSubmission.getGpConfig()) {
+                profiles.put(key, profile);
+            }
+        }
+        return profile;
+    }
+
+    private static String key(DrmJobSubmission drmJobSubmission) {
+        GpContext context = drmJobSubmission.getJobContext();
+        Memory memory = drmJobSubmission.getMemory();
+        return (context != null ? context.getLsid() + "|" + context.getUserId() : "null|null")
+                + "|" + drmJobSubmission.getQueue()
+                + "|" + (memory != null ? memory.getNumBytes() : -1L)
+                + "|" + drmJobSubmission.getWalltime()
+                + "|" + drmJobSubmission.getCpuCount();
+    }
+
+    /**
+     * @return the vmem request for the memory, rounded up to whole gb
+     */
+    static String vmem(Memory memory) {
+        return ((long) Math.ceil(memory.numGb())) + "gb";
+    }
+
+    public static void clear() {
+        profiles.clear();
+    }
+
+    public static long getHitCount() {
+        return hits.get();
+    }
+
+    public static long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * @return job.javaXmxMin, or null
+     */
+    public Memory getJavaXmxMin() {
+        return javaXmxMin;
+    }
+
+    /**
+     * @return job.javaXmxPad, or null
+     */
+    public Memory getJavaXmxPad() {
+        return javaXmxPad;
+    }
+
+    /**
+     * @return the job.memory of the submission, or null
+     */
+    public Memory getMemory() {
+        return memory;
+    }
+
+    /**
+     * @return the vmem request for getMemory(), or null
+     */
+    public String getVmem() {
+        return vmem;
+    }
+
+    public String getWallTime() {
+        return wallTime;
+    }
+
+    public String getQueue() {
+        return queue;
+    }
+
+    public String getPpn() {
+        return ppn;
+    }
+
+    public String getHostName() {
+        return hostName;
+    }
+
+    public String getCpuTime() {
+        return cpuTime;
+    }
+}
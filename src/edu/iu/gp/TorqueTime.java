@@ -0,0 +1,111 @@
+package edu.iu.gp;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import org.apache.log4j.Logger;
+
+/**
+ * Decode the times Torque prints for a job, start_time, qtime, mtime and so
+ * on, e.g. "Tue Dec 16 15:34:12 2014" in "qstat -f", or the seconds since
+ * the epoch, e.g. 1418762052, in "qstat -f -x".
+ *
+ * The formatter is immutable and shared by all the threads. All the jobs of
+ * a burst were queued within the same seconds and every running job is
+ * checked again with the same start_time, so the last decoded values are
+ * kept in a small LRU map.
+ *
+ * @author lewu@iu.edu
+ */
+public final class TorqueTime {
+
+    private static final Logger log = Logger.getLogger(TorqueTime.class);
+
+    public static final String PATTERN = "EEE MMM d HH:mm:ss yyyy";
+
+    private static final DateTimeFormatter FORMAT = DateTimeFormatter.ofPattern(PATTERN, Locale.US);
+
+    private static final int MAX_CACHED_TIMES = 1024;
+
+    private static final Map<String, Long> cache = Collections.synchronizedMap(
+            new LinkedHashMap<String, Long>(256, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                    return size() > MAX_CACHED_TIMES;
+                }
+            });
+
+    private TorqueTime() {
+    }
+
+    /**
+     * @return the time in ms since the epoch, or -1 if the value is null or
+     * we can not decode it
+     */
+    public static long parseMillis(String value) {
+        if (value == null) {
+            return -1L;
+        }
+        Long millis = cache.get(value);
+        if (millis == null) {
+            millis = decode(value.trim());
+            if (millis >= 0) {
+                cache.put(value, millis);
+            }
+        }
+        return millis;
+    }
+
+    /**
+     * @return the time, or null if the value is null or we can not decode it
+     */
+    public static Date parse(String value) {
+        long millis = parseMillis(value);
+        return millis < 0 ? null : new Date(millis);
+    }
+
+    /**
+     * @return the time the way "qstat -f" prints it, in the local time zone
+     */
+    public static String format(long epochMillis) {
+        return FORMAT.format(LocalDateTime.ofInstant(Instant.ofEpochMilli(epochMillis), ZoneId.systemDefault()));
+    }
+
+    private static long decode(String value) {
+        if (value.isEmpty()) {
+            return -1L;
+        }
+        if (isDigits(value)) {
+            // qstat -x prints the seconds since the epoch
+            return Long.parseLong(value) * 1000L;
+        }
+        try {
+            // ctime pads the day of the month with a space, "Tue Dec  2 ..."
+            String text = value.indexOf("  ") >= 0 ? value.replaceAll("\\s+", " ") : value;
+            return LocalDateTime.parse(text, FORMAT).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            log.error("can not decode the time '" + value + "': " + e.getMessage());
+            return -1L;
+        }
+    }
+
+    private static boolean isDigits(String value) {
+        if (value.length() > 18) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,109 @@
+package edu.iu.gp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.genepattern.drm.DrmJobState;
+import org.genepattern.drm.DrmJobStatus;
+import org.junit.Test;
+
+/**
+ * How long a status stays fresh in every pbs state, and which statuses are
+ * kept.
+ *
+ * @author lewu@iu.edu
+ */
+public class JobStatusCacheTest {
+
+    private static final long MIN_TTL = 5000L;
+    private static final long MAX_TTL = 300000L;
+
+    private final JobStatusCache cache = new JobStatusCache(true, MIN_TTL, MAX_TTL);
+
+    private static QstatRecord running(long usedSeconds, long requestedSeconds) {
+        return new QstatRecord.Builder("265066.m1.mason").jobState("R")
+                .walltime(usedSeconds).requestedWalltime(requestedSeconds).build();
+    }
+
+    private static DrmJobStatus status(String drmJobId, DrmJobState state) {
+        return new DrmJobStatus.Builder(drmJobId, state).build();
+    }
+
+    @Test
+    public void waitingJobsUseATenthOfTheTimeInTheState() {
+        for (String state : new String[] {"Q", "H", "S"}) {
+            assertEquals(state, 60000L, cache.ttlMillis(state, 600000L, null));
+            assertEquals(state, MIN_TTL, cache.ttlMillis(state, 1000L, null));
+            assertEquals(state, MAX_TTL, cache.ttlMillis(state, 24L * 3600000L, null));
+        }
+    }
+
+    @Test
+    public void runningJobsUseATenthOfTheWalltimeUsed() {
+        // the job started long before we first saw it, the age in R is 0
+        assertEquals(180000L, cache.ttlMillis("R", 0L, running(1800L, 720L * 3600L)));
+        assertEquals(MIN_TTL, cache.ttlMillis("R", 0L, running(10L, 720L * 3600L)));
+        assertEquals(MAX_TTL, cache.ttlMillis("R", 0L, running(48L * 3600L, 720L * 3600L)));
+    }
+
+    @Test
+    public void runningJobsCloseToTheirWalltimeAreCheckedMoreOften() {
+        // 10 minutes left of 2 hours: a tenth of the time left, not of the time used
+        assertEquals(60000L, cache.ttlMillis("R", 0L, running(6600L, 7200L)));
+        assertEquals(MIN_TTL, cache.ttlMillis("R", 0L, running(7200L, 7200L)));
+        // over the walltime, the job is about to be killed
+        assertEquals(MIN_TTL, cache.ttlMillis("R", 0L, running(7300L, 7200L)));
+    }
+
+    @Test
+    public void runningJobsWithoutAWalltimeUseTheAge() {
+        assertEquals(60000L, cache.ttlMillis("R", 600000L, null));
+        assertEquals(60000L, cache.ttlMillis("R", 600000L, QstatRecord.forState("265066.m1.mason", "R")));
+        // no requested walltime, only the walltime used
+        QstatRecord record = new QstatRecord.Builder("265066.m1.mason").jobState("R").walltime(600L).build();
+        assertEquals(60000L, cache.ttlMillis("R", 0L, record));
+    }
+
+    @Test
+    public void otherStatesUseTheMinimum() {
+        assertEquals(MIN_TTL, cache.ttlMillis("E", 600000L, null));
+        assertEquals(MIN_TTL, cache.ttlMillis("C", 600000L, null));
+        assertEquals(MIN_TTL, cache.ttlMillis("W", 600000L, null));
+    }
+
+    @Test
+    public void keepsTheFinalStatusForever() {
+        DrmJobStatus done = status("5.m1__mason", DrmJobState.DONE);
+        cache.put("5.m1__mason", "C", done, null, true);
+        assertSame(done, cache.get("5.m1__mason", true));
+        assertSame(done, cache.get("5.m1__mason", false));
+        // the last known status is only for the jobs which are not finished
+        assertNull(cache.getLastKnown("5.m1__mason"));
+    }
+
+    @Test
+    public void doesNotKeepAFailureWithoutTheEpilogueOutput() {
+        cache.put("5.m1__mason", "R", status("5.m1__mason", DrmJobState.RUNNING), null, false);
+        cache.put("5.m1__mason", "C", status("5.m1__mason", DrmJobState.FAILED), null, false);
+        assertNull(cache.get("5.m1__mason", false));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void doesNotUseARunningStatusOnceTheJobIsFinished() {
+        DrmJobStatus running = status("5.m1__mason", DrmJobState.RUNNING);
+        cache.put("5.m1__mason", "R", running, running(1800L, 7200L), false);
+        assertSame(running, cache.get("5.m1__mason", false));
+        assertNull(cache.get("5.m1__mason", true));
+        assertSame(running, cache.getLastKnown("5.m1__mason"));
+    }
+
+    @Test
+    public void disabledCacheAnswersNothing() {
+        JobStatusCache disabled = new JobStatusCache(false, MIN_TTL, MAX_TTL);
+        disabled.put("5.m1__mason", "C", status("5.m1__mason", DrmJobState.DONE), null, true);
+        assertNull(disabled.get("5.m1__mason", true));
+    }
+
+}
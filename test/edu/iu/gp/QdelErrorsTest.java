@@ -0,0 +1,74 @@
+package edu.iu.gp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+
+/**
+ * Matching the lines qdel prints on stderr to the jobs of a bulk qdel call.
+ *
+ * @author lewu@iu.edu
+ */
+public class QdelErrorsTest {
+
+    private static Map<String, String> parse(String stderr, String... ids) {
+        Map<String, String> errors = new HashMap<String, String>();
+        PBS.parseQdelErrors(stderr, Arrays.asList(ids), errors);
+        return errors;
+    }
+
+    @Test
+    public void matchesTheLineOfEveryJob() {
+        Map<String, String> errors = parse("qdel: Unknown Job Id 265066.m1.mason\n"
+                + "qdel: Request invalid for state of job MSG=invalid state for job - COMPLETE 265068.m1.mason\n",
+                "265066.m1.mason", "265067.m1.mason", "265068.m1.mason");
+        assertEquals(2, errors.size());
+        assertEquals("qdel: Unknown Job Id 265066.m1.mason", errors.get("265066.m1.mason"));
+        assertTrue(errors.get("265068.m1.mason").startsWith("qdel: Request invalid"));
+        assertFalse(errors.containsKey("265067.m1.mason"));
+    }
+
+    @Test
+    public void matchesTheShortIdOfTheServer() {
+        // qdel may print the id with another server suffix than we asked for
+        Map<String, String> errors = parse("qdel: Unknown Job Id 265066.m1\n",
+                "265066.m1.mason", "265067.m1.mason");
+        assertEquals(1, errors.size());
+        assertEquals("qdel: Unknown Job Id 265066.m1", errors.get("265066.m1.mason"));
+    }
+
+    @Test
+    public void matchesTheElementsOfAnArray() {
+        Map<String, String> errors = parse("qdel: Unknown Job Id 123[4].m1.mason\n",
+                "123[3].m1.mason", "123[4].m1.mason", "123.m1.mason");
+        assertEquals(1, errors.size());
+        assertEquals("qdel: Unknown Job Id 123[4].m1.mason", errors.get("123[4].m1.mason"));
+    }
+
+    @Test
+    public void matchesTheIdsOfAnotherServer() {
+        Map<String, String> errors = parse("qdel: Unknown Job Id=265066@m2.mason\n",
+                "265066@m2.mason", "265067@m2.mason");
+        assertEquals(1, errors.size());
+        assertEquals("qdel: Unknown Job Id=265066@m2.mason", errors.get("265066@m2.mason"));
+    }
+
+    @Test
+    public void givesTheWholeStderrWhenNoJobIsNamed() {
+        String stderr = "Cannot connect to default server host 'm1.mason' - check pbs_server daemon.\n"
+                + "qdel: cannot connect to server m1.mason (errno=111) Connection refused\n";
+        List<String> ids = Arrays.asList("265066.m1.mason", "265067.m1.mason");
+        Map<String, String> errors = parse(stderr, ids.toArray(new String[ids.size()]));
+        assertEquals(2, errors.size());
+        for (String id : ids) {
+            assertEquals(stderr.trim(), errors.get(id));
+        }
+    }
+
+}
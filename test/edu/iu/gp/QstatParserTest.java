@@ -0,0 +1,112 @@
+package edu.iu.gp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Map;
+import org.junit.Test;
+
+/**
+ * The "qstat -f" parser: the records of a cluster, the continuation lines
+ * Torque wraps long values into, and the durations and memory sizes.
+ *
+ * @author lewu@iu.edu
+ */
+public class QstatParserTest {
+
+    private static final String OUTPUT = "Job Id: 265066.m1.mason\n"
+            + "    Job_Name = gp-job-65066-\n"
+            + "\tuser35\n"
+            + "    job_state = R\n"
+            + "    queue = batch\n"
+            + "    resources_used.cput = 01:02:03\n"
+            + "    resources_used.mem = 4232kb\n"
+            + "    resources_used.vmem = 112640kb\n"
+            + "    resources_used.walltime = 00:00:05\n"
+            + "    Resource_List.mem = 8gb\n"
+            + "    Resource_List.walltime = 720:00:00\n"
+            + "    Variable_List = PBS_O_HOME=/home/user35,PBS_O_LANG=en_US.UTF-8,\n"
+            + "\tPBS_O_LOGNAME=user35,PBS_O_PATH=/usr/bin:/bin,\n"
+            + "\tPBS_O_SHELL=/bin/bash\n"
+            + "    exit_status = -11\n"
+            + "\n"
+            + "Job Id: 265067[4].m1.mason\n"
+            + "    Job_Name = gp-array-65067-user35-4\n"
+            + "    job_state = Q\n";
+
+    @Test
+    public void parsesEveryJobOfTheCluster() {
+        Map<String, QstatRecord> records = QstatParser.parse(OUTPUT);
+        assertEquals(2, records.size());
+        assertEquals("R", records.get("265066").getJobState());
+        assertEquals("Q", records.get("265067[4]").getJobState());
+        assertEquals("265067[4].m1.mason", records.get("265067[4]").getJobId());
+    }
+
+    @Test
+    public void appendsTheContinuationLines() {
+        QstatRecord record = QstatParser.parseSingle(OUTPUT);
+        assertEquals("gp-job-65066-user35", record.getJobName());
+        // the wrapped Variable_List does not leak into the next attribute
+        assertEquals(Integer.valueOf(-11), record.getExitStatus());
+        assertEquals("batch", record.getQueue());
+    }
+
+    @Test
+    public void decodesTheResources() {
+        QstatRecord record = QstatParser.parseSingle(OUTPUT);
+        assertEquals(Long.valueOf(3723L), record.getCpuTime());
+        assertEquals(Long.valueOf(5L), record.getWalltime());
+        assertEquals(Long.valueOf(4232L * 1024L), record.getMem());
+        assertEquals(Long.valueOf(112640L * 1024L), record.getVmem());
+        assertEquals(Long.valueOf(720L * 3600L), record.getRequestedWalltime());
+        // Resource_List.mem is not resources_used.mem
+        assertNull(record.getRequestedVmem());
+    }
+
+    @Test
+    public void parsesTheStreamLikeTheString() throws IOException {
+        QstatRecord record = QstatParser.parseSingle(new StringReader(OUTPUT.replace("\n", "\r\n")));
+        assertEquals("gp-job-65066-user35", record.getJobName());
+        assertEquals(Long.valueOf(3723L), record.getCpuTime());
+    }
+
+    @Test
+    public void noJobInTheOutput() {
+        assertNull(QstatParser.parseSingle("qstat: Unknown Job Id 1.m1\n"));
+    }
+
+    @Test
+    public void decodesDurations() {
+        assertEquals(3723L, duration("01:02:03"));
+        assertEquals(2592000L, duration("720:00:00"));
+        assertEquals(3600L, duration("3600"));
+        assertEquals(65L, duration(" 01:05 "));
+        assertEquals(QstatRecord.UNKNOWN, duration(""));
+        assertEquals(QstatRecord.UNKNOWN, duration("1h"));
+    }
+
+    @Test
+    public void decodesMemorySizes() {
+        assertEquals(1024L, memory("1024"));
+        assertEquals(1024L, memory("1024b"));
+        assertEquals(123456L * 1024L, memory("123456kb"));
+        assertEquals(4L * 1024L * 1024L * 1024L, memory("4gb"));
+        assertEquals(4L * 1024L * 1024L * 1024L, memory("4GB"));
+        assertEquals(2L * 1024L * 1024L * 1024L * 1024L, memory("2tb"));
+        assertEquals(10L * 1024L * 1024L * 8L, memory("10mw"));
+        assertEquals(16L, memory("2w"));
+        assertEquals(QstatRecord.UNKNOWN, memory("kb"));
+        assertEquals(QstatRecord.UNKNOWN, memory("4gx"));
+    }
+
+    private static long duration(String s) {
+        return QstatParser.decodeDuration(s, 0, s.length());
+    }
+
+    private static long memory(String s) {
+        return QstatParser.decodeMemory(s, 0, s.length());
+    }
+}
@@ -0,0 +1,167 @@
+package edu.iu.gp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.regex.PatternSyntaxException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * The keyword automaton and the regular expressions of the stderr scanner,
+ * over the whole file, the tail of the file, and the bytes appended between
+ * two status checks of a running job.
+ *
+ * @author lewu@iu.edu
+ */
+public class StderrScannerTest {
+
+    private static final String[] KEYWORDS = {"error", "core dump", "exception"};
+
+    private static final String[] NO_REGEX = {};
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File write(String text) throws IOException {
+        File file = folder.newFile();
+        append(file, text);
+        return file;
+    }
+
+    private static void append(File file, String text) throws IOException {
+        OutputStream out = new FileOutputStream(file, true);
+        try {
+            out.write(text.getBytes(StandardCharsets.US_ASCII));
+        } finally {
+            out.close();
+        }
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    @Test
+    public void findsNothingInACleanFile() throws IOException {
+        StderrScanner scanner = new StderrScanner(KEYWORDS, NO_REGEX, 0L);
+        assertNull(scanner.findError(write("")));
+        assertNull(scanner.findError(write("loading the data\nwriting the results\n")));
+    }
+
+    @Test
+    public void ignoresTheCaseOfTheKeywords() throws IOException {
+        StderrScanner scanner = new StderrScanner(new String[] {"Core Dump"}, NO_REGEX, 0L);
+        assertEquals("Core Dump", scanner.findError(write("Segmentation fault (CORE DUMPED)\n")));
+        assertEquals("Core Dump", scanner.findError(write("core dump")));
+    }
+
+    @Test
+    public void findsOverlappingKeywords() throws IOException {
+        // the automaton falls back from "abc" to "bcd" without reading the bytes again
+        StderrScanner scanner = new StderrScanner(new String[] {"abcx", "bcd"}, NO_REGEX, 0L);
+        assertEquals("bcd", scanner.findError(write("xxabcd\n")));
+    }
+
+    @Test
+    public void findsAKeywordAcrossTwoBlocks() throws IOException {
+        // the file is copied out of the mapping in blocks of 64KB
+        String text = repeat('x', 64 * 1024 - 3) + "Exception in thread main\n";
+        StderrScanner scanner = new StderrScanner(KEYWORDS, NO_REGEX, 0L);
+        assertEquals("exception", scanner.findError(write(text)));
+    }
+
+    @Test
+    public void findsAKeywordAcrossTwoChecks() throws IOException {
+        StderrScanner scanner = new StderrScanner(KEYWORDS, NO_REGEX, 0L);
+        File file = write("step 1\nfatal err");
+        assertNull(scanner.scanAppended(file));
+        append(file, "or: out of memory\n");
+        assertEquals("error", scanner.scanAppended(file));
+        // the error is kept, the final check does not read the file again
+        assertEquals("error", scanner.finish(file));
+    }
+
+    @Test
+    public void findsAnErrorAppendedBeforeTheFinalCheck() throws IOException {
+        StderrScanner scanner = new StderrScanner(KEYWORDS, NO_REGEX, 0L);
+        File file = write("step 1\n");
+        assertNull(scanner.scanAppended(file));
+        append(file, "step 2\nerror");
+        assertEquals("error", scanner.finish(file));
+    }
+
+    @Test
+    public void keepsTheFinalResultUntilForgotten() throws IOException {
+        StderrScanner scanner = new StderrScanner(KEYWORDS, NO_REGEX, 0L);
+        File file = write("done\n");
+        assertNull(scanner.finish(file));
+        append(file, "error\n");
+        assertNull(scanner.finish(file));
+        scanner.forget(file);
+        assertEquals("error", scanner.finish(file));
+    }
+
+    @Test
+    public void scansAgainATruncatedFile() throws IOException {
+        StderrScanner scanner = new StderrScanner(KEYWORDS, NO_REGEX, 0L);
+        File file = write("a long line without any problem\n");
+        assertNull(scanner.scanAppended(file));
+        assertTrue(file.delete());
+        assertTrue(file.createNewFile());
+        append(file, "error\n");
+        assertEquals("error", scanner.scanAppended(file));
+    }
+
+    @Test
+    public void scansOnlyTheTail() throws IOException {
+        StderrScanner scanner = new StderrScanner(KEYWORDS, NO_REGEX, 1024L);
+        assertEquals(1024L, scanner.getTailBytes());
+        assertNull(scanner.findError(write("error\n" + repeat('x', 2048) + "\n")));
+        assertEquals("error", scanner.findError(write(repeat('x', 2048) + "\nerror\n")));
+    }
+
+    @Test
+    public void matchesTheRegularExpressionsLineByLine() throws IOException {
+        StderrScanner scanner = new StderrScanner(new String[0],
+                new String[] {"^Killed$", "exit code [1-9][0-9]*"}, 0L);
+        assertNull(scanner.findError(write("not Killed\nexit code 0\n")));
+        assertEquals("^Killed$", scanner.findError(write("step 1\nKilled\n")));
+        // the last line is matched even without a new line
+        assertEquals("exit code [1-9][0-9]*", scanner.findError(write("step 1\nexit code 137")));
+    }
+
+    @Test
+    public void skipsTheFirstPartialLineOfTheTail() throws IOException {
+        StderrScanner scanner = new StderrScanner(new String[0], new String[] {"^Killed"}, 16L);
+        // the tail starts inside "not Killed", it must not be seen as "Killed"
+        assertNull(scanner.findError(write(repeat('x', 64) + "\nnot Killed\n")));
+        assertEquals("^Killed", scanner.findError(write(repeat('x', 64) + "\nKilled\n")));
+    }
+
+    @Test
+    public void matchesKeywordsAndRegularExpressionsTogether() throws IOException {
+        StderrScanner scanner = new StderrScanner(KEYWORDS, new String[] {"^fatal:"}, 0L);
+        assertTrue(scanner.hasErrors(write("fatal: no space left on device\n")));
+        assertTrue(scanner.hasErrors(write("an error\n")));
+        assertFalse(scanner.hasErrors(write("not fatal: retrying\n")));
+    }
+
+    @Test(expected = PatternSyntaxException.class)
+    public void rejectsAnInvalidRegularExpression() {
+        // only the system properties of the default scanner are logged and skipped
+        new StderrScanner(KEYWORDS, new String[] {"([a-z"}, 0L);
+    }
+
+}